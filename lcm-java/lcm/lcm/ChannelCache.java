@@ -0,0 +1,133 @@
+package lcm.lcm;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A size-bounded cache of per-channel values (in LCM, the subscriptions
+ * matching each channel), readable without locking.
+ * <p>
+ * Lookups only read the map and a few volatile fields.  Insertions are
+ * expected to be rare, and callers serialize them (along with
+ * {@link #invalidateAll}) with their own lock.  When the cache grows past its
+ * capacity, the least recently used eighth of the entries is evicted.
+ * Recency is tracked in units of insertions: every entry read since the last
+ * insertion is considered equally recent, which keeps reads from contending
+ * on a shared counter.
+ * <p>
+ * {@link #invalidateAll} is O(1): it bumps a generation number, and entries
+ * from older generations are treated as misses.
+ */
+final class ChannelCache<V>
+{
+    static final class Entry<V>
+    {
+        final V value;
+        final long generation;
+        volatile long lastUsed;
+
+        Entry(V value, long generation, long lastUsed)
+        {
+            this.value = value;
+            this.generation = generation;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    static final int DEFAULT_CAPACITY = 4096;
+
+    final ConcurrentHashMap<String,Entry<V>> map = new ConcurrentHashMap<String,Entry<V>>();
+
+    volatile int capacity;
+    volatile long generation = 0;
+    volatile long clock = 0; // advanced by each insertion
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final AtomicLong evictions = new AtomicLong();
+
+    ChannelCache(int capacity)
+    {
+        this.capacity = capacity;
+    }
+
+    /** Returns the cached value, or null if there is none for the
+     * current generation.
+     **/
+    V get(String channel)
+    {
+        Entry<V> e = map.get(channel);
+        if (e == null || e.generation != generation) {
+            misses.increment();
+            return null;
+        }
+
+        long now = clock;
+        if (e.lastUsed != now)
+            e.lastUsed = now;
+
+        hits.increment();
+        return e.value;
+    }
+
+    /** Returns the cached value without counting a hit or miss. **/
+    V peek(String channel)
+    {
+        Entry<V> e = map.get(channel);
+        return (e == null || e.generation != generation) ? null : e.value;
+    }
+
+    /** Caller must hold the lock that serializes insertions. **/
+    void put(String channel, V value)
+    {
+        long now = ++clock;
+        map.put(channel, new Entry<V>(value, generation, now));
+
+        if (map.size() > capacity)
+            evict(map.size() - capacity + capacity / 8);
+    }
+
+    /** Caller must hold the lock that serializes insertions. **/
+    void invalidateAll()
+    {
+        generation++;
+    }
+
+    /** Caller must hold the lock that serializes insertions. **/
+    void setCapacity(int capacity)
+    {
+        this.capacity = capacity;
+        if (map.size() > capacity)
+            evict(map.size() - capacity);
+    }
+
+    void evict(int n)
+    {
+        ArrayList<Map.Entry<String,Entry<V>>> entries =
+            new ArrayList<Map.Entry<String,Entry<V>>>(map.entrySet());
+
+        final long gen = generation;
+        Collections.sort(entries, new Comparator<Map.Entry<String,Entry<V>>>() {
+            public int compare(Map.Entry<String,Entry<V>> a, Map.Entry<String,Entry<V>> b) {
+                // stale generations go first, then least recently used.
+                boolean astale = a.getValue().generation != gen;
+                boolean bstale = b.getValue().generation != gen;
+                if (astale != bstale)
+                    return astale ? -1 : 1;
+                long la = a.getValue().lastUsed, lb = b.getValue().lastUsed;
+                return (la < lb) ? -1 : ((la == lb) ? 0 : 1);
+            }
+        });
+
+        n = Math.min(n, entries.size());
+        for (int i = 0; i < n; i++)
+            map.remove(entries.get(i).getKey(), entries.get(i).getValue());
+        evictions.addAndGet(n);
+    }
+
+    int size()
+    {
+        return map.size();
+    }
+}
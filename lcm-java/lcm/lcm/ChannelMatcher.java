@@ -0,0 +1,115 @@
+package lcm.lcm;
+
+import java.util.regex.*;
+
+/**
+ * A subscription regular expression, classified so that the common cases
+ * can be matched without the regex engine.  Most subscriptions are either a
+ * literal channel name (e.g. "POSE") or a literal prefix followed by ".*"
+ * (e.g. "CAMERA_.*"); only the remaining ones are compiled to a
+ * {@link Pattern}.
+ */
+final class ChannelMatcher
+{
+    static final int LITERAL = 0;
+    static final int PREFIX  = 1;
+    static final int REGEX   = 2;
+
+    final String regex;
+    final int kind;
+    final String literal; // the channel name or prefix, for LITERAL and PREFIX
+    final Pattern pat;    // only for REGEX
+
+    ChannelMatcher(String regex, int kind, String literal, Pattern pat)
+    {
+        this.regex = regex;
+        this.kind = kind;
+        this.literal = literal;
+        this.pat = pat;
+    }
+
+    /** Classify a regular expression. Throws PatternSyntaxException if
+     * it is not valid.
+     **/
+    static ChannelMatcher compile(String regex)
+    {
+        int kind = LITERAL;
+        String body = regex;
+        if (regex.endsWith(".*") && !regex.endsWith("\\.*")) {
+            kind = PREFIX;
+            body = regex.substring(0, regex.length() - 2);
+        }
+
+        String literal = unescape(body);
+        if (literal == null)
+            return new ChannelMatcher(regex, REGEX, null, Pattern.compile(regex));
+
+        return new ChannelMatcher(regex, kind, literal, null);
+    }
+
+    /** If s only matches itself (after removing escapes such as "\."),
+     * return the string it matches. Otherwise return null.
+     **/
+    static String unescape(String s)
+    {
+        StringBuilder sb = null;
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c == '\\') {
+                // an escaped punctuation character stands for itself;
+                // anything else (\d, \Q, ...) needs the regex engine.
+                if (i + 1 >= s.length())
+                    return null;
+                char e = s.charAt(i + 1);
+                if (Character.isLetterOrDigit(e) || e > 127)
+                    return null;
+
+                if (sb == null)
+                    sb = new StringBuilder(s.substring(0, i));
+                sb.append(e);
+                i++;
+                continue;
+            }
+
+            if ("[](){}.*+?^$|".indexOf(c) >= 0)
+                return null;
+
+            if (sb != null)
+                sb.append(c);
+        }
+
+        return (sb == null) ? s : sb.toString();
+    }
+
+    boolean matches(String channel)
+    {
+        switch (kind) {
+            case LITERAL:
+                return literal.equals(channel);
+            case PREFIX:
+                return channel.startsWith(literal) &&
+                    noLineTerminators(channel, literal.length());
+            default:
+                return pat.matcher(channel).matches();
+        }
+    }
+
+    /** ".*" does not match line terminators, so neither may the part of
+     * the channel after a prefix.
+     **/
+    static boolean noLineTerminators(String s, int start)
+    {
+        for (int i = start; i < s.length(); i++) {
+            if (isLineTerminator(s.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    static boolean isLineTerminator(char c)
+    {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+}
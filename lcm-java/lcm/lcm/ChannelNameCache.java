@@ -0,0 +1,124 @@
+package lcm.lcm;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Maps channel names, as raw bytes in a received packet, to Strings.  Once
+ * a channel has been seen, looking it up again does not allocate.
+ * <p>
+ * Each entry also caches whether LCM has subscribers for the channel, so
+ * that unwanted messages can be dropped before they are copied or
+ * reassembled.  The verdict is kept until the subscriptions change.
+ * <p>
+ * Not thread-safe: each reader thread should use its own cache.
+ */
+final class ChannelNameCache
+{
+    static final int DEFAULT_CAPACITY = 512; // must be a power of two
+
+    byte keys[][];
+    String values[];
+    int hashes[];
+    long verdictGenerations[]; // subscription generation of the verdict
+    boolean wanted[];
+    int size;
+
+    ChannelNameCache()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    ChannelNameCache(int capacity)
+    {
+        keys = new byte[capacity][];
+        values = new String[capacity];
+        hashes = new int[capacity];
+        verdictGenerations = new long[capacity];
+        wanted = new boolean[capacity];
+    }
+
+    /** Return the channel name stored in <code>len</code> bytes of <code>buf</code>. **/
+    String get(byte buf[], int offset, int len)
+    {
+        return values[index(buf, offset, len)];
+    }
+
+    /** Return whether LCM has subscribers for the channel at the given
+     * index.
+     **/
+    boolean wanted(int idx, LCM lcm)
+    {
+        long generation = lcm.getSubscriptionGeneration();
+        if (verdictGenerations[idx] != generation) {
+            wanted[idx] = lcm.hasSubscribers(values[idx]);
+            verdictGenerations[idx] = generation;
+        }
+        return wanted[idx];
+    }
+
+    /** Return the index of the channel name stored in <code>len</code>
+     * bytes of <code>buf</code>, adding it if necessary. The index is
+     * valid until the next lookup.
+     **/
+    int index(byte buf[], int offset, int len)
+    {
+        int hash = hash(buf, offset, len);
+        int mask = keys.length - 1;
+
+        int idx = hash & mask;
+        while (keys[idx] != null) {
+            if (hashes[idx] == hash && equal(keys[idx], buf, offset, len))
+                return idx;
+            idx = (idx + 1) & mask;
+        }
+
+        // Keep the table at most half full. A process that sees an
+        // unbounded number of channel names just starts over.
+        if (size >= keys.length / 2) {
+            clear();
+            idx = hash & mask;
+        }
+
+        byte key[] = new byte[len];
+        System.arraycopy(buf, offset, key, 0, len);
+        String value = new String(key, StandardCharsets.ISO_8859_1);
+
+        keys[idx] = key;
+        values[idx] = value;
+        hashes[idx] = hash;
+        verdictGenerations[idx] = -1;
+        size++;
+
+        return idx;
+    }
+
+    void clear()
+    {
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = null;
+            values[i] = null;
+        }
+        size = 0;
+    }
+
+    static int hash(byte buf[], int offset, int len)
+    {
+        int h = 0;
+        for (int i = offset; i < offset + len; i++)
+            h = 31 * h + buf[i];
+
+        // spread the low bits, since the table size is a power of two.
+        return h ^ (h >>> 16);
+    }
+
+    static boolean equal(byte key[], byte buf[], int offset, int len)
+    {
+        if (key.length != len)
+            return false;
+        for (int i = 0; i < len; i++) {
+            if (key[i] != buf[offset + i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,290 @@
+package lcm.lcm;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A bounded queue and thread that deliver messages to a single subscriber.
+ * <p>
+ * Lanes are created by {@link LCM#subscribe(String, LCMSubscriber,
+ * DeliveryPolicy)} for subscriptions that do not use inline delivery.  The
+ * provider's thread copies each message into the lane and returns
+ * immediately; the lane's thread (or, if the policy has an executor, a task
+ * submitted to it) then invokes the subscriber.  Messages are delivered one
+ * at a time, in the order they were received.
+ * <p>
+ * The counters exposed by this class can be used to monitor how far behind a
+ * subscriber is running, and how many messages it has lost.
+ */
+public class DeliveryLane
+{
+    static class Entry
+    {
+        String channel;
+        byte data[];
+        long utime;
+    }
+
+    final LCM lcm;
+    final LCMSubscriber sub;
+    final LCMTimestampedSubscriber timestampedSub; // sub, if it wants receive times
+    final DeliveryPolicy policy;
+    final String name;
+
+    ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+
+    // Only used by the CONFLATE policy: the queued entry for each channel.
+    HashMap<String,Entry> pending = new HashMap<String,Entry>();
+
+    long numDelivered = 0;
+    long numDropped = 0;
+    int maxQueueDepth = 0;
+
+    boolean closed = false;
+
+    // With an executor: true while a drain task is submitted or running.
+    boolean scheduled = false;
+
+    LaneThread thread;
+
+    DeliveryLane(LCM lcm, String regex, LCMSubscriber sub, DeliveryPolicy policy)
+    {
+        this.lcm = lcm;
+        this.sub = sub;
+        this.timestampedSub = (sub instanceof LCMTimestampedSubscriber) ?
+            (LCMTimestampedSubscriber) sub : null;
+        this.policy = policy;
+        this.name = "LCM delivery lane ("+regex+")";
+
+        if (policy.executor == null) {
+            thread = new LaneThread();
+            thread.start();
+        }
+    }
+
+    /**
+     * Called on the provider's thread.  Copies the message into the queue,
+     * applying the overflow policy if the queue is full.
+     */
+    synchronized void enqueue(String channel, byte data[], int offset, int length, long utime)
+    {
+        if (closed)
+            return;
+
+        if (policy.overflow == DeliveryPolicy.Overflow.CONFLATE) {
+            Entry e = pending.get(channel);
+            if (e != null) {
+                // replace the queued message in place.
+                e.data = copy(data, offset, length);
+                e.utime = utime;
+                numDropped++;
+                return;
+            }
+        }
+
+        while (queue.size() >= policy.capacity) {
+            switch (policy.overflow) {
+                case DROP_NEWEST:
+                    numDropped++;
+                    return;
+                case BLOCK:
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    if (closed)
+                        return;
+                    break;
+                default:
+                    Entry old = queue.removeFirst();
+                    pending.remove(old.channel);
+                    numDropped++;
+                    break;
+            }
+        }
+
+        Entry e = new Entry();
+        e.channel = channel;
+        e.data = copy(data, offset, length);
+        e.utime = utime;
+        queue.addLast(e);
+        if (policy.overflow == DeliveryPolicy.Overflow.CONFLATE)
+            pending.put(channel, e);
+
+        maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+
+        if (policy.executor != null) {
+            if (!scheduled) {
+                scheduled = true;
+                try {
+                    policy.executor.execute(new Runnable() {
+                        public void run() {
+                            drain();
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    // the executor has been shut down; nobody will
+                    // deliver these messages.
+                    scheduled = false;
+                    numDropped += queue.size();
+                    queue.clear();
+                    pending.clear();
+                }
+            }
+        } else {
+            notifyAll();
+        }
+    }
+
+    static byte[] copy(byte data[], int offset, int length)
+    {
+        byte b[] = new byte[length];
+        System.arraycopy(data, offset, b, 0, length);
+        return b;
+    }
+
+    synchronized Entry take() throws InterruptedException
+    {
+        while (queue.isEmpty() && !closed)
+            wait();
+
+        if (closed)
+            return null;
+
+        Entry e = queue.removeFirst();
+        pending.remove(e.channel);
+
+        // wake up any provider thread blocked on a full queue.
+        notifyAll();
+        return e;
+    }
+
+    /** Remove the next message, or mark the drain task finished if
+     * there is none.
+     **/
+    synchronized Entry poll()
+    {
+        if (queue.isEmpty() || closed) {
+            scheduled = false;
+            return null;
+        }
+
+        Entry e = queue.removeFirst();
+        pending.remove(e.channel);
+        notifyAll();
+        return e;
+    }
+
+    /** Executor task: deliver messages until the queue is empty. **/
+    void drain()
+    {
+        Entry e;
+        while ((e = poll()) != null)
+            deliver(e);
+    }
+
+    void deliver(Entry e)
+    {
+        LCM.ReceiveView local = LCM.receiveViews.get();
+        long outerUtime = local.utime;
+        local.utime = e.utime;
+        try {
+            LCMDataInputStream ins = new LCMDataInputStream(e.data, 0, e.data.length);
+            if (timestampedSub != null)
+                timestampedSub.messageReceived(lcm, e.channel, e.utime, ins);
+            else
+                sub.messageReceived(lcm, e.channel, ins);
+        } catch (RuntimeException ex) {
+            System.err.println("LCM: "+name+": subscriber ex: "+ex);
+        } finally {
+            local.utime = outerUtime;
+        }
+
+        synchronized(this) {
+            numDelivered++;
+        }
+    }
+
+    /** Stop the lane's thread, discarding any queued messages. **/
+    void close()
+    {
+        synchronized(this) {
+            if (closed)
+                return;
+            closed = true;
+            queue.clear();
+            pending.clear();
+            notifyAll();
+        }
+
+        if (thread != null && Thread.currentThread() != thread) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+            }
+        }
+    }
+
+    /** Returns the policy this lane was created with. **/
+    public DeliveryPolicy getPolicy()
+    {
+        return policy;
+    }
+
+    /** Returns the number of messages waiting to be delivered. **/
+    public synchronized int getQueueDepth()
+    {
+        return queue.size();
+    }
+
+    /** Returns the largest number of messages that have been queued at once. **/
+    public synchronized int getMaxQueueDepth()
+    {
+        return maxQueueDepth;
+    }
+
+    /** Returns the number of messages that have been delivered to the subscriber. **/
+    public synchronized long getDeliveredCount()
+    {
+        return numDelivered;
+    }
+
+    /**
+     * Returns the number of messages that were discarded because the queue
+     * was full (or, for {@link DeliveryPolicy.Overflow#CONFLATE}, because a
+     * newer message on the same channel replaced them).
+     */
+    public synchronized long getDropCount()
+    {
+        return numDropped;
+    }
+
+    class LaneThread extends Thread
+    {
+        LaneThread()
+        {
+            super(name);
+            setDaemon(true);
+        }
+
+        public void run()
+        {
+            while (true) {
+                Entry e;
+                try {
+                    e = take();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+
+                if (e == null)
+                    return;
+
+                deliver(e);
+            }
+        }
+    }
+}
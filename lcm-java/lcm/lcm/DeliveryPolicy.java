@@ -0,0 +1,189 @@
+package lcm.lcm;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+/**
+ * Describes how {@link LCM} delivers messages to a subscriber.
+ * <p>
+ * By default, subscribers are invoked inline, on the thread of the provider
+ * that received the message.  A slow subscriber then delays every other
+ * subscriber, and can cause the provider to lose messages (e.g., by letting
+ * the UDP socket buffer overflow).  A lane policy instead gives the
+ * subscriber its own thread, fed by a bounded queue.  When the queue is
+ * full, the {@link Overflow} behaviour decides what happens to the newly
+ * received message.
+ * <p>
+ * Lanes can also run on an {@link Executor} rather than on a dedicated
+ * thread; see {@link #virtualThreads()}.  In either case, a subscriber sees
+ * its messages one at a time and in order.
+ *
+ * @see LCM#subscribe(String, LCMSubscriber, DeliveryPolicy)
+ * @see DeliveryLane
+ */
+public final class DeliveryPolicy
+{
+    /**
+     * What a delivery lane does when a message arrives and its queue is full.
+     */
+    public enum Overflow {
+        /** Discard the oldest queued message to make room. */
+        DROP_OLDEST,
+        /** Discard the message that just arrived. */
+        DROP_NEWEST,
+        /** Block the receiving thread until the subscriber catches up. */
+        BLOCK,
+        /**
+         * Keep only the latest message for each channel.  A message
+         * replaces any queued message on the same channel; if the queue
+         * is full of other channels, the oldest one is discarded.
+         */
+        CONFLATE
+    }
+
+    static final DeliveryPolicy INLINE = new DeliveryPolicy(0, null, null);
+
+    static final int DEFAULT_CAPACITY = 1024;
+
+    static Executor virtualThreadExecutor;
+
+    final int capacity;
+    final Overflow overflow;
+    final Executor executor; // null for a dedicated thread
+
+    DeliveryPolicy(int capacity, Overflow overflow, Executor executor)
+    {
+        this.capacity = capacity;
+        this.overflow = overflow;
+        this.executor = executor;
+    }
+
+    /**
+     * Deliver messages on the provider's thread, as soon as they are
+     * received.  This is the behaviour of {@link LCM#subscribe(String,
+     * LCMSubscriber)}.
+     */
+    public static DeliveryPolicy inline()
+    {
+        return INLINE;
+    }
+
+    /**
+     * Deliver messages on a dedicated thread, queueing up to
+     * <code>capacity</code> of them.
+     *
+     * @param capacity maximum number of queued messages, at least one.
+     * @param overflow what to do with messages that arrive when the queue is full.
+     */
+    public static DeliveryPolicy lane(int capacity, Overflow overflow)
+    {
+        return executor(null, capacity, overflow);
+    }
+
+    /**
+     * Deliver messages by submitting tasks to <code>executor</code>,
+     * queueing up to <code>capacity</code> of them.  At most one task per
+     * subscriber is outstanding at a time, so the subscriber is never
+     * invoked concurrently and sees its messages in order.
+     *
+     * @param executor runs the delivery tasks, or null for a dedicated thread.
+     * @param capacity maximum number of queued messages, at least one.
+     * @param overflow what to do with messages that arrive when the queue is full.
+     */
+    public static DeliveryPolicy executor(Executor executor, int capacity, Overflow overflow)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("DeliveryPolicy: capacity must be positive");
+        if (overflow == null)
+            throw new IllegalArgumentException("DeliveryPolicy: overflow must not be null");
+        return new DeliveryPolicy(capacity, overflow, executor);
+    }
+
+    /**
+     * Deliver messages on virtual threads, blocking the provider if more than
+     * {@value #DEFAULT_CAPACITY} messages are waiting for the subscriber.
+     *
+     * @see #virtualThreads(int, Overflow)
+     */
+    public static DeliveryPolicy virtualThreads()
+    {
+        return virtualThreads(DEFAULT_CAPACITY, Overflow.BLOCK);
+    }
+
+    /**
+     * Deliver messages on virtual threads.  Subscribers may then block (e.g.,
+     * on file or network I/O) without holding up the provider's thread, and
+     * without needing a sized thread pool.
+     * <p>
+     * Virtual threads require Java 21 or later.  On older runtimes, a pool of
+     * daemon platform threads that grows on demand is used instead.
+     *
+     * @param capacity maximum number of queued messages, at least one.
+     * @param overflow what to do with messages that arrive when the queue is full.
+     */
+    public static DeliveryPolicy virtualThreads(int capacity, Overflow overflow)
+    {
+        return executor(getVirtualThreadExecutor(), capacity, overflow);
+    }
+
+    static synchronized Executor getVirtualThreadExecutor()
+    {
+        if (virtualThreadExecutor != null)
+            return virtualThreadExecutor;
+
+        // lcm.jar is built for Java 8, so look the factory up reflectively.
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            virtualThreadExecutor = (Executor) m.invoke(null);
+        } catch (NoSuchMethodException ex) {
+        } catch (IllegalAccessException ex) {
+        } catch (InvocationTargetException ex) {
+            // e.g. Java 19 and 20, where virtual threads are a preview feature.
+        }
+
+        if (virtualThreadExecutor == null) {
+            virtualThreadExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "LCM delivery");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        return virtualThreadExecutor;
+    }
+
+    /** Returns true if messages are delivered on the provider's thread. **/
+    public boolean isInline()
+    {
+        return overflow == null;
+    }
+
+    /** Returns the maximum number of queued messages, or 0 for inline delivery. **/
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /** Returns the overflow behaviour, or null for inline delivery. **/
+    public Overflow getOverflow()
+    {
+        return overflow;
+    }
+
+    /** Returns the executor running the lane, or null if it has a dedicated thread. **/
+    public Executor getExecutor()
+    {
+        return executor;
+    }
+
+    public String toString()
+    {
+        if (isInline())
+            return "inline";
+        if (executor != null)
+            return "executor(" + executor + ", " + capacity + ", " + overflow + ")";
+        return "lane(" + capacity + ", " + overflow + ")";
+    }
+}
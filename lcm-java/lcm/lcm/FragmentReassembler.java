@@ -0,0 +1,351 @@
+package lcm.lcm;
+
+import java.net.*;
+import java.util.*;
+
+/**
+ * Reassembles messages that were sent as several UDP fragments.
+ * <p>
+ * Partial messages are kept per sender and keyed by sequence number, so a
+ * sender may have several messages in flight, and their fragments may
+ * arrive in any order and on any thread.  A partial message that receives
+ * no fragment for the timeout is discarded, and so are a sender's oldest
+ * partial messages when its partial messages would otherwise use more than
+ * the memory limit.  A message larger than the limit is never buffered; its
+ * fragments are ignored.  Message buffers come from a pool of power-of-two size
+ * classes, and return to it once the message has been delivered or
+ * discarded.
+ * <p>
+ * Fragment data is copied without holding the lock, so several threads can
+ * fill in the same message at once.
+ * <p>
+ * A message that nobody subscribes to can be marked as skipped once its
+ * first fragment (which carries the channel name) arrives.  Its buffer is
+ * released, and its remaining fragments are ignored.
+ */
+final class FragmentReassembler
+{
+    static final class Sender
+    {
+        final SocketAddress from;
+        ArrayList<Partial> partials = new ArrayList<Partial>();
+        long bytes = 0;
+        long lastUpdate;
+
+        Sender(SocketAddress from)
+        {
+            this.from = from;
+        }
+    }
+
+    /** A message whose fragments have not all arrived. **/
+    static final class Partial
+    {
+        final Sender sender;
+        final int msgSeqNumber;
+        final int data_size;
+        byte data[];              // from the pool; may be longer than data_size.
+                                  // null if skipped.
+        final boolean frag_received[];
+        String channel;           // known once fragment 0 arrives
+        int fragments_remaining;
+        int copying = 0;          // fragments being copied in right now
+        boolean dropped = false;
+        boolean skipped = false;
+        long lastUpdate;
+
+        Partial(Sender sender, int msgSeqNumber, int data_size, int fragments, byte data[], long now)
+        {
+            this.sender = sender;
+            this.msgSeqNumber = msgSeqNumber;
+            this.data_size = data_size;
+            this.data = data;
+            this.frag_received = new boolean[fragments];
+            this.fragments_remaining = fragments;
+            this.lastUpdate = now;
+        }
+    }
+
+    // Larger messages are rejected, as in the C implementation.
+    static final int  MAX_MESSAGE_SIZE = 1 << 28;
+    static final int  MAX_IN_FLIGHT = 16; // partial messages per sender
+    static final long DEFAULT_TIMEOUT_MS = 1000;
+    static final long DEFAULT_MAX_BYTES = 1 << 26; // per sender
+
+    // Pooled buffers are 2^MIN_SIZE_CLASS to 2^MAX_SIZE_CLASS bytes long.
+    static final int  MIN_SIZE_CLASS = 16;
+    static final int  MAX_SIZE_CLASS = 28;
+
+    final long timeoutNanos;
+    final long maxBytesPerSender;
+
+    // All guarded by "this".
+    HashMap<SocketAddress,Sender> senders = new HashMap<SocketAddress,Sender>();
+    ArrayList<ArrayDeque<byte[]>> pool = new ArrayList<ArrayDeque<byte[]>>();
+    long pooledBytes = 0;
+    long lastSweep;
+
+    long numCompleted = 0;
+    long numExpired = 0;
+    long numEvicted = 0;
+    long numOversized = 0;
+    long numInvalid = 0;
+    long numDuplicates = 0;
+
+    FragmentReassembler(long timeout_ms, long maxBytesPerSender)
+    {
+        this.timeoutNanos = timeout_ms * 1000000L;
+        this.maxBytesPerSender = maxBytesPerSender;
+        this.lastSweep = System.nanoTime();
+
+        for (int c = MIN_SIZE_CLASS; c <= MAX_SIZE_CLASS; c++)
+            pool.add(new ArrayDeque<byte[]>());
+    }
+
+    /**
+     * Add one fragment's data.  If it completes a message, returns it; the
+     * caller must pass it to {@link #release} once it has been delivered.
+     *
+     * @param channel the channel name, for fragment 0; otherwise null.
+     */
+    Partial add(SocketAddress from, int msgSeqNumber, int msg_size, int fragments_in_msg,
+                int fragment_id, int fragment_offset, String channel,
+                byte buf[], int offset, int length)
+    {
+        if (fragment_id >= fragments_in_msg || msg_size < 0 || msg_size > MAX_MESSAGE_SIZE ||
+            length < 0 || fragment_offset < 0 || (long) fragment_offset + length > msg_size) {
+            synchronized(this) {
+                numInvalid++;
+            }
+            return null;
+        }
+
+        Partial p;
+        synchronized(this) {
+            long now = System.nanoTime();
+            if (now - lastSweep > timeoutNanos / 2)
+                expire(now);
+
+            p = find(from, msgSeqNumber, msg_size, fragments_in_msg, false, now);
+            if (p.skipped)
+                return null;
+            if (p.frag_received[fragment_id]) {
+                numDuplicates++;
+                return null;
+            }
+
+            p.frag_received[fragment_id] = true;
+            if (channel != null)
+                p.channel = channel;
+            p.lastUpdate = now;
+            p.sender.lastUpdate = now;
+            p.copying++;
+        }
+
+        System.arraycopy(buf, offset, p.data, fragment_offset, length);
+
+        // count the fragment only once its data is in place.
+        synchronized(this) {
+            p.copying--;
+            p.fragments_remaining--;
+
+            if (p.dropped) {
+                if (p.copying == 0)
+                    recycle(p.data);
+                return null;
+            }
+
+            if (p.fragments_remaining > 0)
+                return null;
+
+            remove(p);
+            numCompleted++;
+            return p;
+        }
+    }
+
+    /** Mark a message as unwanted: forget any fragments received so far,
+     * and ignore the rest.
+     **/
+    synchronized void skip(SocketAddress from, int msgSeqNumber, int msg_size, int fragments_in_msg)
+    {
+        long now = System.nanoTime();
+        Partial p = find(from, msgSeqNumber, msg_size, fragments_in_msg, true, now);
+        p.lastUpdate = now;
+        if (p.skipped)
+            return;
+
+        // fragments arrived before fragment 0; throw them away.
+        p.sender.bytes -= p.data_size;
+        p.skipped = true;
+        if (p.copying == 0) {
+            recycle(p.data);
+            p.data = null;
+        } else {
+            p.dropped = true; // the last copier recycles it
+        }
+    }
+
+    /** Returns true if the message has been marked as unwanted. **/
+    synchronized boolean isSkipped(SocketAddress from, int msgSeqNumber)
+    {
+        Sender s = senders.get(from);
+        if (s == null)
+            return false;
+        for (int i = 0; i < s.partials.size(); i++) {
+            Partial p = s.partials.get(i);
+            if (p.msgSeqNumber == msgSeqNumber)
+                return p.skipped;
+        }
+        return false;
+    }
+
+    /** Drop the partial messages that have timed out, if that has not
+     * been done recently.
+     **/
+    synchronized void expire()
+    {
+        long now = System.nanoTime();
+        if (now - lastSweep > timeoutNanos / 2)
+            expire(now);
+    }
+
+    /** Return a completed message's buffer to the pool. **/
+    synchronized void release(Partial p)
+    {
+        recycle(p.data);
+    }
+
+    /** Find the partial message, or start a new one (without a buffer,
+     * if <code>skipped</code>).
+     **/
+    Partial find(SocketAddress from, int msgSeqNumber, int msg_size, int fragments_in_msg,
+                 boolean skipped, long now)
+    {
+        Sender s = senders.get(from);
+        if (s == null) {
+            s = new Sender(from);
+            senders.put(from, s);
+        }
+
+        for (int i = 0; i < s.partials.size(); i++) {
+            Partial p = s.partials.get(i);
+            if (p.msgSeqNumber != msgSeqNumber)
+                continue;
+            if (p.data_size == msg_size && p.frag_received.length == fragments_in_msg)
+                return p;
+            // the sender restarted; forget the old message.
+            drop(p);
+            if (!p.skipped)
+                numEvicted++;
+            break;
+        }
+
+        // a message that could never fit is skipped, before its
+        // buffer is allocated.
+        if (!skipped && msg_size > maxBytesPerSender) {
+            skipped = true;
+            numOversized++;
+        }
+
+        // make room by dropping the sender's oldest partial messages.
+        int bytes = skipped ? 0 : msg_size;
+        while (!s.partials.isEmpty() &&
+               (s.partials.size() >= MAX_IN_FLIGHT || s.bytes + bytes > maxBytesPerSender)) {
+            Partial p = s.partials.get(0);
+            drop(p);
+            if (!p.skipped)
+                numEvicted++;
+        }
+
+        Partial p = new Partial(s, msgSeqNumber, msg_size, fragments_in_msg,
+                                skipped ? null : take(msg_size), now);
+        p.skipped = skipped;
+        s.partials.add(p);
+        s.bytes += bytes;
+        return p;
+    }
+
+    void remove(Partial p)
+    {
+        p.sender.partials.remove(p);
+        if (!p.skipped)
+            p.sender.bytes -= p.data_size;
+    }
+
+    void drop(Partial p)
+    {
+        remove(p);
+        if (p.skipped)
+            return; // its buffer is already gone
+        p.dropped = true;
+        if (p.copying == 0)
+            recycle(p.data);
+    }
+
+    /** Drop the partial messages that have timed out, and forget the
+     * senders that have gone quiet.
+     **/
+    void expire(long now)
+    {
+        lastSweep = now;
+
+        for (Iterator<Sender> it = senders.values().iterator(); it.hasNext(); ) {
+            Sender s = it.next();
+
+            while (!s.partials.isEmpty() && now - oldest(s).lastUpdate > timeoutNanos) {
+                Partial p = oldest(s);
+                drop(p);
+                if (!p.skipped)
+                    numExpired++;
+            }
+
+            if (s.partials.isEmpty() && now - s.lastUpdate > timeoutNanos)
+                it.remove();
+        }
+    }
+
+    static Partial oldest(Sender s)
+    {
+        Partial oldest = s.partials.get(0);
+        for (Partial p : s.partials) {
+            if (p.lastUpdate < oldest.lastUpdate)
+                oldest = p;
+        }
+        return oldest;
+    }
+
+    static int sizeClass(int size)
+    {
+        int c = 32 - Integer.numberOfLeadingZeros(Math.max(size - 1, 0));
+        return Math.max(c, MIN_SIZE_CLASS);
+    }
+
+    byte[] take(int size)
+    {
+        int c = sizeClass(size);
+        byte buf[] = pool.get(c - MIN_SIZE_CLASS).pollFirst();
+        if (buf == null)
+            return new byte[1 << c];
+        pooledBytes -= buf.length;
+        return buf;
+    }
+
+    void recycle(byte buf[])
+    {
+        // keep at most one sender's worth of memory for reuse.
+        if (pooledBytes + buf.length > maxBytesPerSender)
+            return;
+        pool.get(sizeClass(buf.length) - MIN_SIZE_CLASS).addFirst(buf);
+        pooledBytes += buf.length;
+    }
+
+    /** Returns the number of partial messages, over all senders. **/
+    synchronized int getPartialCount()
+    {
+        int n = 0;
+        for (Sender s : senders.values())
+            n += s.partials.size();
+        return n;
+    }
+}
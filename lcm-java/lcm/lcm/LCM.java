@@ -3,6 +3,7 @@ package lcm.lcm;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 import java.nio.*;
 
@@ -23,23 +24,141 @@ public class LCM
         return env;
     }
 
+    /** Returns the current time in microseconds since the epoch. This
+     * is the clock that providers stamp received messages with (see
+     * {@link LCMTimestampedSubscriber}): it has microsecond resolution
+     * and does not follow adjustments of the system clock made after
+     * this class was loaded.
+     **/
+    public static long utime()
+    {
+        return UTIME_BASE + (System.nanoTime() - NANOTIME_BASE) / 1000;
+    }
+
     static class SubscriptionRecord
     {
         String  regex;
-        Pattern pat;
+        ChannelMatcher matcher;
         LCMSubscriber lcsub;
+        LCMTimestampedSubscriber timestampedSub; // lcsub, if it wants receive times
+        DeliveryLane lane; // null for inline delivery
+
+        // Set instead of lcsub for typed subscriptions.
+        LCMTypedSubscriber<LCMEncodable> typedSub;
+        MessageDecoder decoder;
     }
 
+    static final SubscriptionRecord[] NO_SUBSCRIPTIONS = new SubscriptionRecord[0];
+
+    // utime() counts from these, so that reading it is cheap and it
+    // never steps backwards.
+    static final long UTIME_BASE = System.currentTimeMillis() * 1000;
+    static final long NANOTIME_BASE = System.nanoTime();
+
     ArrayList<SubscriptionRecord> subscriptions = new ArrayList<SubscriptionRecord>();
+
+    // The same subscriptions, indexed for resolving new channels. Guarded
+    // by the subscriptions lock.
+    SubscriptionIndex<SubscriptionRecord> subscriptionIndex = new SubscriptionIndex<SubscriptionRecord>();
     ArrayList<Provider> providers = new ArrayList<Provider>();
 
-    HashMap<String,ArrayList<SubscriptionRecord>> subscriptionsMap = new HashMap<String,ArrayList<SubscriptionRecord>>();
+    /** For recently seen channels, the subscriptions matching it. The
+     * arrays are never modified once cached; subscribe() and
+     * unsubscribe() invalidate the cache (while holding the
+     * subscriptions lock), and receiveMessage() reads it without
+     * locking. The cache is bounded, so that processes that see an
+     * unbounded number of channel names do not grow without bound.
+     **/
+    ChannelCache<SubscriptionRecord[]> subscriptionsMap = new ChannelCache<SubscriptionRecord[]>(ChannelCache.DEFAULT_CAPACITY);
 
     boolean closed = false;
+    boolean closing = false; // close() has started; guarded by "this"
+
+    // When non-null, received messages are handed off to a pool of
+    // dispatch threads instead of being delivered on the provider's thread.
+    volatile ShardedDispatcher dispatcher;
+
+    // Used by subscribe() calls that do not specify a delivery policy.
+    volatile DeliveryPolicy defaultPolicy = DeliveryPolicy.INLINE;
 
     static LCM singleton;
 
-    LCMDataOutputStream encodeBuffer = new LCMDataOutputStream(new byte[1024]);
+    /** The stream handed to inline subscribers, reused for every message
+     * dispatched on a thread so that delivery does not allocate.
+     **/
+    static class ReceiveView
+    {
+        LCMDataInputStream ins = new LCMDataInputStream(new byte[0]);
+        boolean busy; // set while subscribers are running, in case one re-enters
+
+        // When the message being delivered on this thread was received,
+        // or 0. Only used in the thread's own view; see receiveUtime().
+        long utime;
+
+        // The objects decoded from the message being dispatched, by type,
+        // so that typed subscribers of one type share a single decode. A
+        // null object records a message that failed to decode.
+        Class<?> decodedTypes[] = new Class<?>[4];
+        LCMEncodable decoded[] = new LCMEncodable[4];
+        int ndecoded;
+
+        /** Return the index of the object decoded as cls, or -1. **/
+        int findDecoded(Class<?> cls)
+        {
+            for (int i = 0; i < ndecoded; i++) {
+                if (decodedTypes[i] == cls)
+                    return i;
+            }
+            return -1;
+        }
+
+        void addDecoded(Class<?> cls, LCMEncodable obj)
+        {
+            if (ndecoded == decodedTypes.length) {
+                decodedTypes = Arrays.copyOf(decodedTypes, ndecoded * 2);
+                decoded = Arrays.copyOf(decoded, ndecoded * 2);
+            }
+            decodedTypes[ndecoded] = cls;
+            decoded[ndecoded] = obj;
+            ndecoded++;
+        }
+
+        /** Drop the references, so that they can be collected. **/
+        void clearDecoded()
+        {
+            for (int i = 0; i < ndecoded; i++) {
+                decodedTypes[i] = null;
+                decoded[i] = null;
+            }
+            ndecoded = 0;
+        }
+    }
+
+    static final ThreadLocal<ReceiveView> receiveViews = new ThreadLocal<ReceiveView>() {
+        protected ReceiveView initialValue() {
+            return new ReceiveView();
+        }
+    };
+
+    /** Return when the message being delivered on this thread was
+     * received, for subscribers that implement only the three-argument
+     * messageReceived. Returns the current time if no message is being
+     * delivered.
+     **/
+    static long receiveUtime()
+    {
+        long utime = receiveViews.get().utime;
+        return (utime != 0) ? utime : utime();
+    }
+
+    /** Each publishing thread encodes into its own buffer, so that
+     * encoding does not need to be serialized.
+     **/
+    static final ThreadLocal<LCMDataOutputStream> encodeBuffers = new ThreadLocal<LCMDataOutputStream>() {
+        protected LCMDataOutputStream initialValue() {
+            return new LCMDataOutputStream(new byte[1024]);
+        }
+    };
 
     /** Create a new LCM object, connecting to one or more URLs. If
      * no URL is specified, the environment variable LCM_DEFAULT_URL is
@@ -62,16 +181,23 @@ public class LCM
             URLParser up = new URLParser(url);
             String protocol = up.get("protocol");
 
+            Provider p;
             if (protocol.equals("udpm"))
-                providers.add(new UDPMulticastProvider(this, up));
+                p = new UDPMulticastProvider(this, up);
+            else if (protocol.equals("udpr"))
+                p = new ReliableMulticastProvider(this, up);
             else if (protocol.equals("tcpq"))
-                providers.add(new TCPProvider(this, up));
+                p = new TCPProvider(this, up);
             else if (protocol.equals("file"))
-                providers.add(new LogFileProvider(this, up));
+                p = new LogFileProvider(this, up);
             else if (protocol.equals("memq"))
-                providers.add(new MemqProvider(this, up));
-            else
+                p = new MemqProvider(this, up);
+            else {
                 System.err.println("LCM: Unknown URL protocol: "+protocol);
+                continue;
+            }
+
+            providers.add(PublishQueue.wrap(p, url, up));
         }
     }
 
@@ -98,7 +224,9 @@ public class LCM
     public int getNumSubscriptions()
     {
         if (this.closed) throw new IllegalStateException();
-        return subscriptions.size();
+        synchronized(subscriptions) {
+            return subscriptions.size();
+        }
     }
 
     /** Publish a string on a channel. This method does not use the
@@ -115,12 +243,14 @@ public class LCM
     }
 
     /** Publish an LCM-defined type on a channel. If more than one URL was
-     * specified, the message will be sent on each.
+     * specified, the message will be sent on each. This method may be
+     * called concurrently from several threads.
      **/
-    public synchronized void publish(String channel, LCMEncodable e)
+    public void publish(String channel, LCMEncodable e)
     {
         if (this.closed) throw new IllegalStateException();
 
+        LCMDataOutputStream encodeBuffer = encodeBuffers.get();
         try {
             encodeBuffer.reset();
 
@@ -136,25 +266,152 @@ public class LCM
      * specification. If more than one URL was specified when the LCM
      * object was created, the message will be sent on each.
      **/
-    public synchronized void publish(String channel, byte[] data, int offset, int length)
+    public void publish(String channel, byte[] data, int offset, int length)
         throws IOException
     {
-        if (this.closed) throw new IllegalStateException();
-        for (Provider p : providers)
+        // Providers do their own locking, so publishers on different
+        // threads are only serialized where a provider needs it.
+        ArrayList<Provider> ps = providers;
+        if (this.closed || ps == null) throw new IllegalStateException();
+        for (Provider p : ps)
             p.publish(channel, data, offset, length);
     }
 
+    /** Wait until every message published so far has been handed to
+     * its provider. This only has an effect for URLs with the
+     * <code>publish_queue</code> option; see {@link PublishQueue}.
+     **/
+    public void flush() throws InterruptedException
+    {
+        for (PublishQueue q : getPublishQueues())
+            q.flush();
+    }
+
+    /** Return the publish queues of the providers that have one. **/
+    public synchronized List<PublishQueue> getPublishQueues()
+    {
+        if (this.closed) throw new IllegalStateException();
+        ArrayList<PublishQueue> queues = new ArrayList<PublishQueue>();
+        for (Provider p : providers) {
+            if (p instanceof PublishQueue)
+                queues.add((PublishQueue) p);
+        }
+        return queues;
+    }
+
+    /** Return the packet loss counters of the udpm and udpr providers.
+     * Those of udpr providers are {@link ReliableMulticastStats}.
+     **/
+    public synchronized List<MulticastStats> getMulticastStats()
+    {
+        if (this.closed) throw new IllegalStateException();
+        ArrayList<MulticastStats> stats = new ArrayList<MulticastStats>();
+        for (Provider p : providers) {
+            if (p instanceof PublishQueue)
+                p = ((PublishQueue) p).getProvider();
+            if (p instanceof UDPMulticastProvider)
+                stats.add(((UDPMulticastProvider) p).getStats());
+        }
+        return stats;
+    }
+
     /** Subscribe to all channels whose name matches the regular
      * expression. Note that to subscribe to all channels, you must
      * specify ".*", not "*".
      **/
     public void subscribe(String regex, LCMSubscriber sub)
+    {
+        subscribe(regex, sub, defaultPolicy);
+    }
+
+    /** Set the delivery policy used by {@link #subscribe(String,
+     * LCMSubscriber)}. For example, with {@link
+     * DeliveryPolicy#virtualThreads()}, every subscriber runs on
+     * virtual threads and may block without holding up the providers.
+     * Existing subscriptions are not affected.
+     **/
+    public void setDefaultDeliveryPolicy(DeliveryPolicy policy)
+    {
+        if (policy == null)
+            throw new IllegalArgumentException("LCM: policy must not be null");
+        defaultPolicy = policy;
+    }
+
+    /** Return the delivery policy used by {@link #subscribe(String,
+     * LCMSubscriber)}.
+     **/
+    public DeliveryPolicy getDefaultDeliveryPolicy()
+    {
+        return defaultPolicy;
+    }
+
+    /** Subscribe to all channels whose name matches the regular
+     * expression, delivering messages according to the given
+     * policy. With {@link DeliveryPolicy#inline()}, this is the same
+     * as {@link #subscribe(String, LCMSubscriber)}. Otherwise, the
+     * subscriber is invoked from its own thread, and a slow
+     * subscriber no longer holds up the provider or other
+     * subscribers.
+     *
+     * @return the lane delivering messages to the subscriber, which
+     * can be used to monitor its queue, or null for inline delivery.
+     **/
+    public DeliveryLane subscribe(String regex, LCMSubscriber sub, DeliveryPolicy policy)
     {
         if (this.closed) throw new IllegalStateException();
         SubscriptionRecord srec = new SubscriptionRecord();
         srec.regex = regex;
-        srec.pat = Pattern.compile(regex);
+        srec.matcher = ChannelMatcher.compile(regex);
         srec.lcsub = sub;
+        if (sub instanceof LCMTimestampedSubscriber)
+            srec.timestampedSub = (LCMTimestampedSubscriber) sub;
+        if (!policy.isInline())
+            srec.lane = new DeliveryLane(this, regex, sub, policy);
+
+        addSubscription(srec);
+        return srec.lane;
+    }
+
+    /** Subscribe to all channels whose name matches the regular
+     * expression, receiving messages already decoded as
+     * <code>cls</code>, an lcm-gen generated type. Messages whose
+     * fingerprint does not match the type are ignored.
+     *
+     * Each message is decoded once, and the decoded object is shared
+     * by all of the typed subscribers to its channel. Typed
+     * subscribers are invoked on the thread that dispatches the
+     * message, regardless of the default delivery policy.
+     **/
+    @SuppressWarnings("unchecked")
+    public <T extends LCMEncodable> void subscribe(String regex, Class<T> cls, LCMTypedSubscriber<T> sub)
+    {
+        if (this.closed) throw new IllegalStateException();
+        SubscriptionRecord srec = new SubscriptionRecord();
+        srec.regex = regex;
+        srec.matcher = ChannelMatcher.compile(regex);
+        srec.typedSub = (LCMTypedSubscriber<LCMEncodable>) sub;
+        srec.decoder = MessageDecoder.forClass(cls);
+
+        addSubscription(srec);
+    }
+
+    /** Subscribe to all channels whose name matches the regular
+     * expression, returning a publisher whose subscribers receive the
+     * messages as fast as they request them. Up to
+     * <code>capacity</code> messages are buffered for each subscriber;
+     * beyond that, <code>overflow</code> decides which are discarded.
+     * Close the publisher to unsubscribe.
+     **/
+    public MessagePublisher createPublisher(String regex, int capacity, DeliveryPolicy.Overflow overflow)
+    {
+        MessagePublisher publisher = new MessagePublisher(this, regex, capacity, overflow);
+        subscribe(regex, publisher, DeliveryPolicy.inline());
+        return publisher;
+    }
+
+    void addSubscription(SubscriptionRecord srec)
+    {
+        String regex = srec.regex;
 
         synchronized(this) {
             for (Provider p : providers)
@@ -163,13 +420,10 @@ public class LCM
 
         synchronized(subscriptions) {
             subscriptions.add(srec);
+            subscriptionIndex.add(srec.matcher, srec);
 
-            for (String channel : subscriptionsMap.keySet()) {
-                if (srec.pat.matcher(channel).matches()) {
-                    ArrayList<SubscriptionRecord> subs = subscriptionsMap.get(channel);
-                    subs.add(srec);
-                }
-            }
+            // channels are resolved again on their next message.
+            subscriptionsMap.invalidateAll();
         }
     }
 
@@ -181,6 +435,23 @@ public class LCM
      * cancelled.
      **/
     public void unsubscribe(String regex, LCMSubscriber sub) {
+        removeSubscriptions(regex, sub);
+    }
+
+    /** Remove a typed subscription. As with {@link #unsubscribe}, a
+     * null regex matches all of the subscriber's subscriptions.
+     **/
+    public void unsubscribeTyped(String regex, LCMTypedSubscriber<?> sub) {
+        if (sub == null)
+            throw new IllegalArgumentException("LCM: sub must not be null");
+        removeSubscriptions(regex, sub);
+    }
+
+    /** Remove the subscriptions matching regex and sub, either of which
+     * may be null to match everything. sub may be an LCMSubscriber or
+     * an LCMTypedSubscriber.
+     **/
+    void removeSubscriptions(String regex, Object sub) {
         if (this.closed) throw new IllegalStateException();
 
         synchronized(this) {
@@ -190,61 +461,269 @@ public class LCM
 
         // TODO: providers don't seem to use anything beyond first channel
 
+        ArrayList<SubscriptionRecord> removed = new ArrayList<SubscriptionRecord>();
+
         synchronized(subscriptions) {
 
             // Find and remove subscriber from list
             for (Iterator<SubscriptionRecord> it = subscriptions.iterator(); it.hasNext(); ) {
                 SubscriptionRecord sr = it.next();
 
-                if ((sub == null || sr.lcsub == sub) &&
+                if ((sub == null || sr.lcsub == sub || sr.typedSub == sub) &&
                     (regex == null || sr.regex.equals(regex))) {
                     it.remove();
+                    subscriptionIndex.remove(sr.regex, sr);
+                    removed.add(sr);
                 }
             }
 
-            // Find and remove subscriber from map
-            for (String channel : subscriptionsMap.keySet()) {
-                for (Iterator<SubscriptionRecord> it = subscriptionsMap.get(channel).iterator(); it.hasNext(); ) {
-                    SubscriptionRecord sr = it.next();
+            if (!removed.isEmpty())
+                subscriptionsMap.invalidateAll();
+        }
 
-                    if ((sub == null || sr.lcsub == sub) &&
-                        (regex == null || sr.regex.equals(regex))) {
-                        it.remove();
-                    }
-                }
-            }
+        // Stop lanes outside the lock: the lane may be busy in a
+        // subscriber that is itself (un)subscribing.
+        for (SubscriptionRecord sr : removed) {
+            if (sr.lane != null)
+                sr.lane.close();
         }
     }
 
     /** Not for use by end users. Provider back ends call this method
      * when they receive a message. The subscribers that match the
      * channel name are synchronously notified.
+     *
+     * No lock is held while subscribers run, so providers may call this
+     * concurrently from their own threads.
+     *
+     * The message is stamped with the current time; providers that
+     * know when it arrived should pass that instead.
      **/
     public void receiveMessage(String channel, byte data[], int offset, int length)
+    {
+        receiveMessage(channel, data, offset, length, utime());
+    }
+
+    /** Not for use by end users. As {@link #receiveMessage(String,
+     * byte[], int, int)}, for a message that was received at
+     * <code>utime</code> (see {@link #utime}).
+     **/
+    public void receiveMessage(String channel, byte data[], int offset, int length, long utime)
     {
         if (this.closed) throw new IllegalStateException();
-        synchronized (subscriptions) {
-            ArrayList<SubscriptionRecord> srecs = subscriptionsMap.get(channel);
 
-            if (srecs == null) {
-                // must build this list!
-                srecs = new ArrayList<SubscriptionRecord>();
-                subscriptionsMap.put(channel, srecs);
+        // A dispatcher refuses messages once it is closed; then use its
+        // replacement, if any, or deliver the message here.
+        ShardedDispatcher d;
+        while ((d = dispatcher) != null) {
+            if (d.dispatch(channel, data, offset, length, utime))
+                return;
+            if (d == dispatcher)
+                break;
+        }
 
-                for (SubscriptionRecord srec : subscriptions) {
-                    if (srec.pat.matcher(channel).matches())
-                        srecs.add(srec);
-                }
-            }
+        dispatchMessage(channel, data, offset, length, utime);
+    }
+
+    /** Deliver a message to each subscription matching the channel. **/
+    void dispatchMessage(String channel, byte data[], int offset, int length, long utime)
+    {
+        SubscriptionRecord srecs[] = subscriptionsMap.get(channel);
+        if (srecs == null)
+            srecs = resolveSubscriptions(channel);
+
+        ReceiveView local = receiveViews.get();
+        ReceiveView view = local;
+        if (view.busy) {
+            // a subscriber is dispatching a message of its own.
+            view = new ReceiveView();
+        }
 
+        long outerUtime = local.utime;
+        local.utime = utime;
+        view.busy = true;
+        try {
             for (SubscriptionRecord srec : srecs) {
-                srec.lcsub.messageReceived(this,
-                                           channel,
-                                           new LCMDataInputStream(data, offset, length));
+                if (srec.lane != null) {
+                    srec.lane.enqueue(channel, data, offset, length, utime);
+                    continue;
+                }
+
+                view.ins.wrap(data, offset, length);
+
+                if (srec.timestampedSub != null) {
+                    srec.timestampedSub.messageReceived(this, channel, utime, view.ins);
+                    continue;
+                }
+
+                if (srec.typedSub == null) {
+                    srec.lcsub.messageReceived(this, channel, view.ins);
+                    continue;
+                }
+
+                if (length < 8 || fingerprint(data, offset) != srec.decoder.fingerprint)
+                    continue;
+
+                LCMEncodable decoded;
+                int idx = view.findDecoded(srec.decoder.cls);
+                if (idx >= 0) {
+                    decoded = view.decoded[idx];
+                } else {
+                    try {
+                        decoded = (LCMEncodable) srec.decoder.decode(view.ins);
+                    } catch (IOException ex) {
+                        System.err.println("LCM: unable to decode "+channel+": "+ex);
+                        decoded = null;
+                    }
+                    view.addDecoded(srec.decoder.cls, decoded);
+                }
+
+                if (decoded != null)
+                    srec.typedSub.messageReceived(this, channel, decoded);
             }
+        } finally {
+            view.clearDecoded();
+            view.busy = false;
+            local.utime = outerUtime;
+        }
+    }
+
+    /** Read the fingerprint at the start of an encoded message. **/
+    static long fingerprint(byte data[], int offset)
+    {
+        long v = 0;
+        for (int i = 0; i < 8; i++)
+            v = (v << 8) | (data[offset + i] & 0xffL);
+        return v;
+    }
+
+    /** Build the list of subscriptions matching a channel we have not
+     * seen before. This is done under the subscriptions lock so that a
+     * concurrent subscribe() or unsubscribe() cannot be lost.
+     **/
+    SubscriptionRecord[] resolveSubscriptions(String channel)
+    {
+        synchronized (subscriptions) {
+            SubscriptionRecord srecs[] = subscriptionsMap.peek(channel);
+            if (srecs != null)
+                return srecs;
+
+            ArrayList<SubscriptionRecord> matches = new ArrayList<SubscriptionRecord>();
+            subscriptionIndex.match(channel, matches);
+
+            srecs = matches.toArray(NO_SUBSCRIPTIONS);
+            subscriptionsMap.put(channel, srecs);
+            return srecs;
         }
     }
 
+    /** Returns true if any subscription matches the channel. Providers
+     * use this to drop unwanted messages early.
+     **/
+    boolean hasSubscribers(String channel)
+    {
+        SubscriptionRecord srecs[] = subscriptionsMap.peek(channel);
+        if (srecs == null)
+            srecs = resolveSubscriptions(channel);
+        return srecs.length > 0;
+    }
+
+    /** Returns a number that changes whenever the subscriptions do, so
+     * that providers can tell when a cached {@link #hasSubscribers}
+     * answer is stale.
+     **/
+    long getSubscriptionGeneration()
+    {
+        return subscriptionsMap.generation;
+    }
+
+    /** Set the maximum number of channels for which the matching
+     * subscriptions are cached. When more channels are seen, the least
+     * recently used ones are evicted, and resolved again if they
+     * receive another message.
+     **/
+    public void setChannelCacheCapacity(int capacity)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("LCM: capacity must be positive");
+        synchronized (subscriptions) {
+            subscriptionsMap.setCapacity(capacity);
+        }
+    }
+
+    /** Return the maximum number of cached channels. **/
+    public int getChannelCacheCapacity()
+    {
+        return subscriptionsMap.capacity;
+    }
+
+    /** Return the number of channels currently cached. **/
+    public int getChannelCacheSize()
+    {
+        return subscriptionsMap.size();
+    }
+
+    /** Return the number of received messages whose channel was found in
+     * the cache.
+     **/
+    public long getChannelCacheHits()
+    {
+        return subscriptionsMap.hits.sum();
+    }
+
+    /** Return the number of received messages whose channel had to be
+     * resolved against the subscriptions.
+     **/
+    public long getChannelCacheMisses()
+    {
+        return subscriptionsMap.misses.sum();
+    }
+
+    /** Return the number of channels evicted from the cache. **/
+    public long getChannelCacheEvictions()
+    {
+        return subscriptionsMap.evictions.get();
+    }
+
+    /** Deliver received messages from a pool of <code>nthreads</code>
+     * dispatch threads instead of from the providers' threads. Each
+     * channel is always handled by the same thread (chosen by hashing
+     * the channel name), so the messages on a channel are still
+     * delivered in order, but different channels are delivered in
+     * parallel. Subscribers that match several channels must
+     * therefore be thread-safe.
+     *
+     * Passing zero restores delivery from the providers' threads.
+     * This should be configured before any messages are received:
+     * messages that are being dispatched while the mode changes may
+     * be delivered out of order.
+     **/
+    public void setDispatchThreads(int nthreads)
+    {
+        if (this.closed) throw new IllegalStateException();
+        if (nthreads < 0)
+            throw new IllegalArgumentException("LCM: nthreads must not be negative");
+
+        ShardedDispatcher old;
+        synchronized(this) {
+            if (this.closing) throw new IllegalStateException();
+            old = dispatcher;
+            dispatcher = (nthreads > 0) ? new ShardedDispatcher(this, nthreads) : null;
+        }
+
+        if (old != null)
+            old.close();
+    }
+
+    /** Return the number of dispatch threads, or zero if messages are
+     * delivered from the providers' threads.
+     **/
+    public int getDispatchThreads()
+    {
+        ShardedDispatcher d = dispatcher;
+        return (d == null) ? 0 : d.getNumThreads();
+    }
+
     /** A convenience function that subscribes to all LCM channels. **/
     public synchronized void subscribeAll(LCMSubscriber sub)
     {
@@ -255,14 +734,46 @@ public class LCM
      * function, the LCM instance should consume no resources, and cannot be used to
      * receive or transmit messages.
      */
-    public synchronized void close()
+    public void close()
     {
-        if (this.closed) throw new IllegalStateException();
-        for (Provider p : providers) {
-            p.close();
+        ShardedDispatcher d;
+        synchronized(this) {
+            if (this.closed || this.closing) throw new IllegalStateException();
+            closing = true;
+            d = dispatcher;
+            dispatcher = null;
+        }
+
+        // Stop the lanes first, so that no provider thread remains
+        // blocked on a full lane while we wait for it to exit.
+        ArrayList<DeliveryLane> lanes = new ArrayList<DeliveryLane>();
+        ArrayList<MessagePublisher> publishers = new ArrayList<MessagePublisher>();
+        synchronized(subscriptions) {
+            for (SubscriptionRecord srec : subscriptions) {
+                if (srec.lane != null)
+                    lanes.add(srec.lane);
+                if (srec.lcsub instanceof MessagePublisher)
+                    publishers.add((MessagePublisher) srec.lcsub);
+            }
+        }
+        for (DeliveryLane lane : lanes)
+            lane.close();
+        for (MessagePublisher publisher : publishers)
+            publisher.complete();
+
+        // Then the dispatch threads, without holding the lock: a worker
+        // may be running a subscriber that is waiting for it, and the
+        // providers' threads may be waiting for room in its queue.
+        if (d != null)
+            d.close();
+
+        synchronized(this) {
+            for (Provider p : providers) {
+                p.close();
+            }
+            providers = null;
+            this.closed = true;
         }
-        providers = null;
-        this.closed = true;
     }
 
     ////////////////////////////////////////////////////////////////
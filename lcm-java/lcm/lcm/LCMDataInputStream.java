@@ -18,6 +18,14 @@ public final class LCMDataInputStream implements DataInput
     }
 
     public LCMDataInputStream(byte buf[], int offset, int len)
+    {
+        wrap(buf, offset, len);
+    }
+
+    /** Point this stream at a new region of a buffer, so that a single
+     * instance can be reused for every message a thread receives.
+     **/
+    void wrap(byte buf[], int offset, int len)
     {
         this.buf = buf;
         this.pos = offset;
@@ -10,6 +10,9 @@ public interface LCMSubscriber
      *
      * This method is invoked from the LCM thread.
      *
+     * The stream is only valid until this method returns: LCM reuses it
+     * for the next message. Subscribers that keep the data must copy it.
+     *
      * @param lcm the LCM instance that received the message.
      * @param channel the channel on which the message was received.
      * @param ins the message contents.
@@ -0,0 +1,32 @@
+package lcm.lcm;
+
+import java.io.*;
+
+/** A subscriber that also receives the time at which each message
+ * arrived.
+ *
+ * The timestamp is taken by the provider as soon as the message was
+ * received, before it was queued or dispatched, so comparing it with
+ * {@link LCM#utime} gives the delay within this process. Messages
+ * played back from a log carry the time at which they were logged.
+ *
+ * LCM calls only the four-argument {@link #messageReceived(LCM, String,
+ * long, LCMDataInputStream) messageReceived} of a subscriber that
+ * implements this interface.
+ **/
+public interface LCMTimestampedSubscriber extends LCMSubscriber
+{
+    /**
+     * Invoked by LCM when a message is received.
+     *
+     * The stream is only valid until this method returns, as for {@link
+     * LCMSubscriber#messageReceived(LCM, String, LCMDataInputStream)}.
+     *
+     * @param lcm the LCM instance that received the message.
+     * @param channel the channel on which the message was received.
+     * @param utime when the message was received, in microseconds since
+     * the epoch, on the clock of {@link LCM#utime}.
+     * @param ins the message contents.
+     */
+    public void messageReceived(LCM lcm, String channel, long utime, LCMDataInputStream ins);
+}
@@ -0,0 +1,21 @@
+package lcm.lcm;
+
+/** A class which listens for decoded messages of a particular LCM type.
+ *
+ * @see LCM#subscribe(String, Class, LCMTypedSubscriber)
+ **/
+public interface LCMTypedSubscriber<T extends LCMEncodable>
+{
+    /**
+     * Invoked by LCM when a message of type T is received.
+     *
+     * This method is invoked from the thread that dispatches the
+     * message. The same decoded object is passed to every typed
+     * subscriber of the channel, so it should not be modified.
+     *
+     * @param lcm the LCM instance that received the message.
+     * @param channel the channel on which the message was received.
+     * @param msg the decoded message.
+     */
+    public void messageReceived(LCM lcm, String channel, T msg);
+}
@@ -0,0 +1,258 @@
+package lcm.lcm;
+
+import java.io.*;
+
+/**
+ * A pure-Java implementation of the LZ4 block format, used to compress
+ * large messages on the wire.
+ * <p>
+ * A compressed message body is the uncompressed length (a big-endian
+ * int) followed by one LZ4 block.  The compressor favors speed over ratio:
+ * it keeps a single hash table of recent positions, and skips ahead faster
+ * through data that does not compress.  The decompressor checks every
+ * length and offset, so malformed input raises an exception rather than
+ * reading or writing out of bounds.
+ * <p>
+ * Not thread-safe: the hash table and output buffer are reused.
+ */
+final class LZ4Codec
+{
+    static final int MAX_LENGTH = 1 << 28; // largest uncompressed body accepted
+
+    static final int MIN_MATCH = 4;
+    static final int MAX_OFFSET = 65535;
+    static final int LAST_LITERALS = 5;    // the block must end with literals
+    static final int MF_LIMIT = 12;        // no match may start this close to the end
+    static final int HASH_LOG = 14;
+
+    // Positions, relative to the start of the input, by hash of the four
+    // bytes there. Entries left over from earlier inputs are harmless:
+    // every candidate is checked before it is used.
+    final int table[] = new int[1 << HASH_LOG];
+
+    byte buffer[] = new byte[0];
+
+    /** Compress <code>length</code> bytes of <code>data</code>, with the
+     * length prefix, into {@link #buffer}. Returns the compressed length.
+     **/
+    int encode(byte data[], int offset, int length)
+    {
+        int max = 4 + maxCompressedLength(length);
+        if (buffer.length < max)
+            buffer = new byte[max];
+
+        buffer[0] = (byte) (length >>> 24);
+        buffer[1] = (byte) (length >>> 16);
+        buffer[2] = (byte) (length >>> 8);
+        buffer[3] = (byte) length;
+        return 4 + compress(data, offset, length, buffer, 4);
+    }
+
+    /** Returns the uncompressed length of a compressed body. **/
+    static int decodedLength(byte data[], int offset, int length) throws IOException
+    {
+        if (length < 4)
+            throw new EOFException("LZ4Codec: truncated message");
+
+        int size = ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) |
+            ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+        if (size < 0 || size > MAX_LENGTH)
+            throw new IOException("LZ4Codec: invalid message length "+size);
+        return size;
+    }
+
+    /** Decompress a compressed body into the first <code>size</code>
+     * bytes of <code>dst</code>, where <code>size</code> is its {@link
+     * #decodedLength}.
+     **/
+    static void decode(byte data[], int offset, int length, byte dst[], int size) throws IOException
+    {
+        decompress(data, offset + 4, length - 4, dst, 0, size);
+    }
+
+    static int maxCompressedLength(int length)
+    {
+        return length + length / 255 + 16;
+    }
+
+    static int readInt(byte b[], int i)
+    {
+        return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) |
+            ((b[i + 2] & 0xff) << 16) | ((b[i + 3] & 0xff) << 24);
+    }
+
+    static int hash(int v)
+    {
+        return (v * -1640531535) >>> (32 - HASH_LOG); // 2654435761
+    }
+
+    /** Compress into <code>dst</code>, which must have room for {@link
+     * #maxCompressedLength} bytes. Returns the compressed length.
+     **/
+    int compress(byte src[], int srcOff, int srcLen, byte dst[], int dstOff)
+    {
+        int srcEnd = srcOff + srcLen;
+        int matchLimit = srcEnd - LAST_LITERALS;
+        int mfLimit = srcEnd - MF_LIMIT;
+
+        int d = dstOff;
+        int anchor = srcOff;
+
+        if (srcLen > MF_LIMIT) {
+            table[hash(readInt(src, srcOff))] = 0;
+
+            int i = srcOff + 1;
+            int misses = 0;
+            while (i < mfLimit) {
+                int v = readInt(src, i);
+                int h = hash(v);
+                int ref = srcOff + table[h];
+                table[h] = i - srcOff;
+
+                if (ref >= i || i - ref > MAX_OFFSET || readInt(src, ref) != v) {
+                    // step further the longer nothing matches.
+                    i += 1 + (misses++ >>> 6);
+                    continue;
+                }
+                misses = 0;
+
+                while (i > anchor && ref > srcOff && src[i - 1] == src[ref - 1]) {
+                    i--;
+                    ref--;
+                }
+
+                int len = MIN_MATCH;
+                while (i + len < matchLimit && src[i + len] == src[ref + len])
+                    len++;
+
+                d = writeSequence(src, anchor, i - anchor, dst, d, i - ref, len);
+
+                i += len;
+                anchor = i;
+                if (i < mfLimit)
+                    table[hash(readInt(src, i - 2))] = i - 2 - srcOff;
+            }
+        }
+
+        d = writeSequence(src, anchor, srcEnd - anchor, dst, d, 0, 0);
+        return d - dstOff;
+    }
+
+    /** Write literals followed by a match, or by nothing if
+     * <code>matchLen</code> is zero.
+     **/
+    static int writeSequence(byte src[], int literals, int litLen, byte dst[], int d,
+                             int matchOffset, int matchLen)
+    {
+        int token = d++;
+
+        if (litLen >= 15) {
+            dst[token] = (byte) 0xf0;
+            d = writeLength(dst, d, litLen - 15);
+        } else {
+            dst[token] = (byte) (litLen << 4);
+        }
+
+        System.arraycopy(src, literals, dst, d, litLen);
+        d += litLen;
+
+        if (matchLen == 0)
+            return d;
+
+        dst[d++] = (byte) matchOffset;
+        dst[d++] = (byte) (matchOffset >>> 8);
+
+        int ml = matchLen - MIN_MATCH;
+        if (ml >= 15) {
+            dst[token] |= 0x0f;
+            d = writeLength(dst, d, ml - 15);
+        } else {
+            dst[token] |= ml;
+        }
+        return d;
+    }
+
+    static int writeLength(byte dst[], int d, int n)
+    {
+        while (n >= 255) {
+            dst[d++] = (byte) 255;
+            n -= 255;
+        }
+        dst[d++] = (byte) n;
+        return d;
+    }
+
+    /** Decompress one block, which must fill exactly <code>dstLen</code>
+     * bytes of <code>dst</code>.
+     **/
+    static void decompress(byte src[], int srcOff, int srcLen, byte dst[], int dstOff, int dstLen)
+        throws IOException
+    {
+        int s = srcOff;
+        int srcEnd = srcOff + srcLen;
+        int d = dstOff;
+        int dstEnd = dstOff + dstLen;
+
+        while (s < srcEnd) {
+            int token = src[s++] & 0xff;
+
+            int litLen = token >>> 4;
+            if (litLen == 15) {
+                int b;
+                do {
+                    if (s >= srcEnd)
+                        throw new EOFException("LZ4Codec: truncated block");
+                    b = src[s++] & 0xff;
+                    litLen += b;
+                    if (litLen > dstLen)
+                        throw new IOException("LZ4Codec: corrupt block");
+                } while (b == 255);
+            }
+            if (litLen > srcEnd - s || litLen > dstEnd - d)
+                throw new IOException("LZ4Codec: corrupt block");
+
+            System.arraycopy(src, s, dst, d, litLen);
+            s += litLen;
+            d += litLen;
+
+            if (s == srcEnd)
+                break; // the last sequence has no match
+
+            if (srcEnd - s < 2)
+                throw new EOFException("LZ4Codec: truncated block");
+            int offset = (src[s] & 0xff) | ((src[s + 1] & 0xff) << 8);
+            s += 2;
+            if (offset == 0 || offset > d - dstOff)
+                throw new IOException("LZ4Codec: corrupt block");
+
+            int matchLen = token & 0x0f;
+            if (matchLen == 15) {
+                int b;
+                do {
+                    if (s >= srcEnd)
+                        throw new EOFException("LZ4Codec: truncated block");
+                    b = src[s++] & 0xff;
+                    matchLen += b;
+                    if (matchLen > dstLen)
+                        throw new IOException("LZ4Codec: corrupt block");
+                } while (b == 255);
+            }
+            matchLen += MIN_MATCH;
+            if (matchLen > dstEnd - d)
+                throw new IOException("LZ4Codec: corrupt block");
+
+            int ref = d - offset;
+            if (offset >= matchLen) {
+                System.arraycopy(dst, ref, dst, d, matchLen);
+                d += matchLen;
+            } else {
+                // the match overlaps its own output, repeating a pattern.
+                for (int i = 0; i < matchLen; i++)
+                    dst[d++] = dst[ref++];
+            }
+        }
+
+        if (d != dstEnd)
+            throw new IOException("LZ4Codec: block decodes to "+(d - dstOff)+" bytes, expected "+dstLen);
+    }
+}
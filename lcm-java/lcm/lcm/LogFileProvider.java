@@ -15,8 +15,6 @@ public class LogFileProvider implements Provider
     double skip; // skip a fraction of the log file [0, 1.0]
 
     boolean writemode;
-    long nanotime_start;
-    long utime_start;
 
     ReaderThread reader;
 
@@ -34,8 +32,6 @@ public class LogFileProvider implements Provider
 
         if(writemode) {
             log = new Log(logPath, "rw");
-            nanotime_start = System.nanoTime();
-            utime_start = System.currentTimeMillis() * 1000;
         } else {
             log = new Log(logPath, "r");
             reader = new ReaderThread();
@@ -54,7 +50,7 @@ public class LogFileProvider implements Provider
         }
 
         Log.Event event = new Log.Event();
-        event.utime = utime_start + (System.nanoTime() - nanotime_start) / 1000;
+        event.utime = LCM.utime();
         event.eventNumber = 0;
         event.data = new byte[length];
         System.arraycopy(data, offset, event.data, 0, length);
@@ -154,8 +150,8 @@ public class LogFileProvider implements Provider
                     Thread.sleep(ms);
                 }
 
-                // dispatch the message
-                lcm.receiveMessage(ev.channel, ev.data, 0, ev.data.length);
+                // dispatch the message, stamped with the time it was logged
+                lcm.receiveMessage(ev.channel, ev.data, 0, ev.data.length, ev.utime);
             }
         }
     }
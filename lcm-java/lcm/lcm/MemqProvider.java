@@ -1,6 +1,6 @@
 package lcm.lcm;
 
-import java.util.concurrent.*;
+import java.util.*;
 
 public class MemqProvider implements Provider
 {
@@ -8,31 +8,55 @@ public class MemqProvider implements Provider
     {
         String  channel;
         byte data[];
+        int length;
+        long utime; // when it was published
     }
 
+    // Messages larger than this are not returned to the pool, and the
+    // pool keeps at most POOL_SIZE messages; the rest are dropped, so
+    // that a burst does not pin its buffers forever.
+    static final int MAX_POOLED_SIZE = 1 << 20;
+    static final int POOL_SIZE = 64;
+
     LCM lcm;
 
     ReaderThread reader;
-    LinkedBlockingQueue<Message> queue;
+
+    // Both queues are guarded by "queue". Delivered messages are kept
+    // in "free" and reused, so that steady-state traffic does not
+    // allocate.
+    ArrayDeque<Message> queue;
+    ArrayDeque<Message> free;
 
     public MemqProvider(LCM lcm, URLParser up)
     {
         this.lcm = lcm;
 
-        this.queue = new LinkedBlockingQueue<Message>();
+        this.queue = new ArrayDeque<Message>();
+        this.free = new ArrayDeque<Message>();
         reader = new ReaderThread();
         reader.start();
     }
 
     public void publish(String channel, byte data[], int offset, int length)
     {
-        Message msg = new Message();
+        Message msg;
+        synchronized(queue) {
+            msg = free.pollFirst();
+        }
+        if (msg == null)
+            msg = new Message();
+        if (msg.data == null || msg.data.length < length)
+            msg.data = new byte[length];
+
         msg.channel = channel;
-        msg.data = new byte[length];
+        msg.length = length;
+        msg.utime = LCM.utime();
         System.arraycopy(data, offset, msg.data, 0, length);
-        try {
-          queue.put(msg);
-        } catch (InterruptedException ex) {
+
+        synchronized(queue) {
+            queue.addLast(msg);
+            queue.notify();
         }
     }
 
@@ -70,8 +94,22 @@ public class MemqProvider implements Provider
         void runEx() throws InterruptedException
         {
             while (true) {
-                Message msg = queue.take();
-                lcm.receiveMessage(msg.channel, msg.data, 0, msg.data.length);
+                Message msg;
+                synchronized(queue) {
+                    while (queue.isEmpty())
+                        queue.wait();
+                    msg = queue.pollFirst();
+                }
+
+                lcm.receiveMessage(msg.channel, msg.data, 0, msg.length, msg.utime);
+
+                msg.channel = null;
+                if (msg.data.length <= MAX_POOLED_SIZE) {
+                    synchronized(queue) {
+                        if (free.size() < POOL_SIZE)
+                            free.addLast(msg);
+                    }
+                }
             }
         }
     }
@@ -12,8 +12,13 @@ import java.util.*;
  * alternate way to receive messages by storing them in an internal queue, and then
  * delivering them to synchronously to the user.
  * <p>
- * The aggregator has configurable limits.  If too many messages are aggregated
- * without having been retrieved, then older messages are discarded.
+ * The aggregator has configurable limits, overall and per channel.  If too
+ * many messages are aggregated without having been retrieved, then older
+ * messages are discarded.
+ * <p>
+ * Consumers that poll at a fixed rate can take everything pending at once
+ * with {@link #drainTo(Collection, int)}, and can hand buffers back with
+ * {@link #recycle} so that later messages of the same size reuse them.
  */
 public class MessageAggregator
     implements LCMSubscriber
@@ -30,45 +35,383 @@ public class MessageAggregator
          * Channel on which the message was received.
          */
         final public String channel;
+        /**
+         * When the message was received, in microseconds since the
+         * epoch (see {@link LCM#utime}).
+         */
+        final public long utime;
+
+        ChannelLimit limit; // set while counted against a channel limit
+        boolean removed;    // discarded by a channel limit
+
         public Message(String channel_, byte[] data_)
+        {
+            this(channel_, data_, 0);
+        }
+
+        public Message(String channel_, byte[] data_, long utime_)
         {
             data = data_;
             channel = channel_;
+            utime = utime_;
         }
     }
 
-// Would prefer to use ArrayDequeue for performance reasons, but it's too new
-// (only since Java 1.6)
-//    Deque<Message> messages = new ArrayDeque<Message>();
-    LinkedList<Message> messages = new LinkedList<Message>();
+    /**
+     * Per-channel limits, and the channel's queued messages oldest-first.
+     */
+    static class ChannelLimit {
+        int max_messages = Integer.MAX_VALUE;
+        long max_data_size = Long.MAX_VALUE;
+        ArrayDeque<Message> queued = new ArrayDeque<Message>();
+        long data_size = 0;
+    }
+
+    /**
+     * The newest message on a channel, in conflating mode.
+     */
+    static class Latest {
+        final String channel;
+        byte data[];        // newest unretrieved message, or null
+        long utime;         // when it was received
+        Message message;    // the message last handed out
+        boolean ready;      // in the ready queue
+
+        Latest(String channel)
+        {
+            this.channel = channel;
+        }
+    }
+
+    // Buffers larger than this are not kept for reuse.
+    static final int MAX_POOLED_SIZE = 1 << 20;
+    static final int POOL_SIZE = 64;
+
+    // Queued messages, oldest first, in a ring whose length is a power of two.
+    // Messages discarded by a per-channel limit stay in the ring (marked
+    // removed) until they reach the head or the ring is compacted.
+    Message ring[] = new Message[16];
+    int head = 0;
+    int count = 0;      // occupied slots, including removed messages
+    int removed = 0;    // removed messages still in the ring
+    int num_messages = 0;
+
+    HashMap<String,ChannelLimit> channel_limits = new HashMap<String,ChannelLimit>();
+
+    // Recycled message buffers, looked up by exact length.
+    byte pool[][] = new byte[POOL_SIZE][];
+    int pool_count = 0;
+    int pool_next = 0;
+
+    int waiters = 0;
+
+    // Conflating mode only: the newest message on each channel, and the
+    // channels that have one waiting, in the order they were first updated.
+    final boolean conflate;
+    HashMap<String,Latest> latest = new HashMap<String,Latest>();
+    ArrayDeque<Latest> ready = new ArrayDeque<Latest>();
 
     long queue_data_size = 0;
     long max_queue_data_size = 100 * (1 << 20); // 100 megabytes
     int max_queue_length = Integer.MAX_VALUE;
 
+    /**
+     * Creates an aggregator that queues every message.
+     */
+    public MessageAggregator()
+    {
+        this(false);
+    }
+
+    /**
+     * Creates an aggregator.
+     * <p>
+     * In conflating mode, the aggregator only keeps the newest message on
+     * each channel, overwriting an unretrieved message in place when a new
+     * one arrives.  {@link #getNextMessage(long)} and
+     * {@link #drainTo(Collection, int)} then return the newest message of
+     * each channel that has been updated, and {@link #getLatest} returns
+     * the newest message on a given channel.  The amount of work per
+     * received message does not depend on how far behind the consumer is,
+     * and the message limits do not apply.
+     *
+     * @param conflate true for conflating mode.
+     */
+    public MessageAggregator(boolean conflate)
+    {
+        this.conflate = conflate;
+    }
+
     /**
      * Internal method, called by LCM when a message is received.
      */
     public synchronized void messageReceived(LCM lcm, String channel,
                                              LCMDataInputStream dins)
     {
+        long utime = LCM.receiveUtime();
+        if (conflate) {
+            conflate(channel, utime, dins);
+            return;
+        }
+
         try {
-            byte data[] = new byte[dins.available()];
+            byte data[] = takeBuffer(dins.available());
             dins.readFully(data);
 
-            messages.addLast(new Message(channel, data));
+            Message m = new Message(channel, data, utime);
+            addLast(m);
+            num_messages++;
             queue_data_size += data.length;
 
-            while(queue_data_size > max_queue_data_size ||
-                  messages.size() > max_queue_length) {
-                Message to_remove = messages.removeFirst();
-                queue_data_size -= to_remove.data.length;
+            if (!channel_limits.isEmpty()) {
+                ChannelLimit limit = channel_limits.get(channel);
+                if (limit != null) {
+                    m.limit = limit;
+                    limit.queued.addLast(m);
+                    limit.data_size += data.length;
+                    trim(limit);
+                }
             }
 
-            notify();
+            trim();
+
+            if (waiters > 0)
+                notify();
         } catch (IOException xcp) {}
     }
 
+    void conflate(String channel, long utime, LCMDataInputStream dins)
+    {
+        Latest slot = latest.get(channel);
+        if (slot == null) {
+            slot = new Latest(channel);
+            latest.put(channel, slot);
+        }
+
+        try {
+            int length = dins.available();
+            if (slot.data == null) {
+                slot.data = takeBuffer(length);
+                num_messages++;
+            } else if (slot.data.length != length) {
+                recycleBuffer(slot.data);
+                slot.data = takeBuffer(length);
+            }
+            dins.readFully(slot.data);
+            slot.utime = utime;
+        } catch (IOException xcp) {
+            return;
+        }
+
+        if (!slot.ready) {
+            slot.ready = true;
+            ready.addLast(slot);
+        }
+
+        if (waiters > 0)
+            notify();
+    }
+
+    /** Hand out the slot's newest message. Caller must check that there
+     * is one.
+     **/
+    Message take(Latest slot)
+    {
+        Message m = new Message(slot.channel, slot.data, slot.utime);
+        slot.data = null;
+        slot.message = m;
+        num_messages--;
+        return m;
+    }
+
+    /** Remove and return the next message, in either mode. Caller must
+     * check that num_messages > 0.
+     **/
+    Message next()
+    {
+        if (!conflate)
+            return removeFirst();
+
+        while (true) {
+            Latest slot = ready.removeFirst();
+            slot.ready = false;
+            // skip channels already read by getLatest.
+            if (slot.data != null)
+                return take(slot);
+        }
+    }
+
+    void addLast(Message m)
+    {
+        if (count == ring.length) {
+            if (removed > 0)
+                compact();
+            else
+                grow();
+        }
+
+        ring[(head + count) & (ring.length - 1)] = m;
+        count++;
+    }
+
+    void grow()
+    {
+        Message r[] = new Message[ring.length * 2];
+        for (int i = 0; i < count; i++)
+            r[i] = ring[(head + i) & (ring.length - 1)];
+        ring = r;
+        head = 0;
+    }
+
+    /** Squeeze the removed messages out of the ring. **/
+    void compact()
+    {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            int idx = (head + i) & (ring.length - 1);
+            Message m = ring[idx];
+            ring[idx] = null;
+            if (!m.removed)
+                ring[(head + n++) & (ring.length - 1)] = m;
+        }
+        count = n;
+        removed = 0;
+    }
+
+    /** Remove and return the oldest message. Caller must check that
+     * num_messages > 0.
+     **/
+    Message removeFirst()
+    {
+        while (true) {
+            Message m = ring[head];
+            ring[head] = null;
+            head = (head + 1) & (ring.length - 1);
+            count--;
+
+            if (m.removed) {
+                removed--;
+                continue;
+            }
+
+            num_messages--;
+            queue_data_size -= m.data.length;
+            if (m.limit != null) {
+                m.limit.queued.removeFirst();
+                m.limit.data_size -= m.data.length;
+                m.limit = null;
+            }
+            return m;
+        }
+    }
+
+    /** Discard the oldest messages until the global limits are met. **/
+    void trim()
+    {
+        if (conflate)
+            return;
+
+        while (num_messages > 0 &&
+               (queue_data_size > max_queue_data_size ||
+                num_messages > max_queue_length))
+            recycleBuffer(removeFirst().data);
+    }
+
+    /** Discard the oldest messages on a channel until its limits are met. **/
+    void trim(ChannelLimit limit)
+    {
+        while (!limit.queued.isEmpty() &&
+               (limit.data_size > limit.max_data_size ||
+                limit.queued.size() > limit.max_messages)) {
+            Message m = limit.queued.removeFirst();
+            limit.data_size -= m.data.length;
+            m.limit = null;
+            m.removed = true;
+            removed++;
+            num_messages--;
+            queue_data_size -= m.data.length;
+            recycleBuffer(m.data);
+        }
+
+        // don't let removed messages pile up behind a slow consumer.
+        if (removed > 64 && removed > num_messages)
+            compact();
+    }
+
+    byte[] takeBuffer(int length)
+    {
+        for (int i = 0; i < pool_count; i++) {
+            byte buf[] = pool[i];
+            if (buf.length == length) {
+                pool[i] = pool[--pool_count];
+                pool[pool_count] = null;
+                return buf;
+            }
+        }
+        return new byte[length];
+    }
+
+    void recycleBuffer(byte buf[])
+    {
+        if (buf.length == 0 || buf.length > MAX_POOLED_SIZE)
+            return;
+
+        if (pool_count < POOL_SIZE) {
+            pool[pool_count++] = buf;
+        } else {
+            // replace the pooled buffers in turn.
+            pool[pool_next] = buf;
+            pool_next = (pool_next + 1) % POOL_SIZE;
+        }
+    }
+
+    /**
+     * Hands a retrieved message's buffer back to the aggregator, which may
+     * reuse it for a later message of the same size.  The message's
+     * <code>data</code> must not be used after calling this.  Calling it is
+     * optional; it only saves allocating a new buffer.
+     */
+    public synchronized void recycle(Message m)
+    {
+        if (conflate) {
+            // getLatest may still return it.
+            Latest slot = latest.get(m.channel);
+            if (slot != null && slot.message == m)
+                return;
+        }
+        recycleBuffer(m.data);
+    }
+
+    /**
+     * Wait until a message is available or the timeout expires.  Returns
+     * true if a message is available.
+     */
+    boolean waitForMessage(long timeout_ms)
+    {
+        if (num_messages > 0 || timeout_ms == 0)
+            return num_messages > 0;
+
+        long deadline = System.currentTimeMillis() + timeout_ms;
+        waiters++;
+        try {
+            while (num_messages == 0) {
+                if (timeout_ms < 0) {
+                    wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        break;
+                    wait(remaining);
+                }
+            }
+        } catch (InterruptedException xcp) {
+        } finally {
+            waiters--;
+        }
+
+        return num_messages > 0;
+    }
+
     /**
      * Sets the maximum amount of memory that will be used to store messages.
      *
@@ -81,6 +424,7 @@ public class MessageAggregator
     public synchronized void setMaxBufferSize(long val)
     {
         max_queue_data_size = val;
+        trim();
     }
 
     /**
@@ -98,13 +442,75 @@ public class MessageAggregator
      * Messages are discarded oldest-first to ensure that the number of
      * unretrieved messages stays under this limit.
      */
-    public synchronized void setMaxMessages(int val) { max_queue_length = val; }
+    public synchronized void setMaxMessages(int val) { max_queue_length = val; trim(); }
     /**
      * Retrieves the maximum number of unretrieved message that will be queued
      * up by the aggregator.
      */
     public synchronized int getMaxMessages() { return max_queue_length; }
 
+    /**
+     * Sets the maximum amount of memory that will be used to store messages
+     * received on one channel, in addition to the overall limit set by
+     * {@link #setMaxBufferSize(long)}.  Messages on the channel are discarded
+     * oldest-first to stay under this limit.
+     *
+     * @param channel the channel name (not a regular expression).
+     * @param val memory limit, in bytes.
+     */
+    public synchronized void setMaxBufferSize(String channel, long val)
+    {
+        ChannelLimit limit = getChannelLimit(channel);
+        limit.max_data_size = val;
+        trim(limit);
+    }
+
+    /**
+     * Retrieves the memory limit for one channel, or Long.MAX_VALUE if it
+     * has none.
+     */
+    public synchronized long getMaxBufferSize(String channel)
+    {
+        ChannelLimit limit = channel_limits.get(channel);
+        return (limit == null) ? Long.MAX_VALUE : limit.max_data_size;
+    }
+
+    /**
+     * Sets the maximum number of unretrieved messages that will be queued
+     * up for one channel, in addition to the overall limit set by
+     * {@link #setMaxMessages(int)}.  Messages on the channel are discarded
+     * oldest-first to stay under this limit.
+     *
+     * @param channel the channel name (not a regular expression).
+     */
+    public synchronized void setMaxMessages(String channel, int val)
+    {
+        ChannelLimit limit = getChannelLimit(channel);
+        limit.max_messages = val;
+        trim(limit);
+    }
+
+    /**
+     * Retrieves the message limit for one channel, or Integer.MAX_VALUE if
+     * it has none.
+     */
+    public synchronized int getMaxMessages(String channel)
+    {
+        ChannelLimit limit = channel_limits.get(channel);
+        return (limit == null) ? Integer.MAX_VALUE : limit.max_messages;
+    }
+
+    ChannelLimit getChannelLimit(String channel)
+    {
+        // messages queued before the limit existed are not counted against it.
+        ChannelLimit limit = channel_limits.get(channel);
+        if (limit == null) {
+            limit = new ChannelLimit();
+            channel_limits.put(channel, limit);
+        }
+        return limit;
+    }
+
     /**
      * Attempt to retrieve the next received LCM message.
      * @param timeout_ms Max # of milliseconds to wait for a message.  If 0,
@@ -113,29 +519,10 @@ public class MessageAggregator
      */
     public synchronized Message getNextMessage(long timeout_ms)
     {
-        if(!messages.isEmpty()) {
-            Message m = messages.removeFirst();
-            queue_data_size -= m.data.length;
-            return m;
-        }
-
-        if(timeout_ms == 0)
+        if (!waitForMessage(timeout_ms))
             return null;
 
-        try {
-            if(timeout_ms > 0)
-                wait(timeout_ms);
-            else
-                wait();
-
-            if(!messages.isEmpty()) {
-                Message m = messages.removeFirst();
-                queue_data_size -= m.data.length;
-                return m;
-            }
-        } catch (InterruptedException xcp) { }
-
-        return null;
+        return next();
     }
 
     /**
@@ -146,11 +533,75 @@ public class MessageAggregator
         return getNextMessage(-1);
     }
 
+    /**
+     * Moves up to <code>max</code> received messages, oldest first, into a
+     * collection without waiting.  All of the messages are taken in a single
+     * lock acquisition, so this is cheaper than calling
+     * {@link #getNextMessage(long)} once per message.
+     * @return the number of messages added to <code>c</code>.
+     */
+    public synchronized int drainTo(Collection<? super Message> c, int max)
+    {
+        int n = 0;
+        while (n < max && num_messages > 0) {
+            c.add(next());
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Moves up to <code>max</code> received messages into a collection,
+     * waiting for at least one if none are available.
+     * @param timeout_ms Max # of milliseconds to wait for a message.  If 0,
+     * then don't wait.  If less than 0, then wait indefinitely.
+     * @return the number of messages added to <code>c</code>.
+     */
+    public synchronized int drainTo(Collection<? super Message> c, int max, long timeout_ms)
+    {
+        if (!waitForMessage(timeout_ms))
+            return 0;
+        return drainTo(c, max);
+    }
+
+    /**
+     * Returns the newest message received on a channel, without waiting.
+     * Only available in conflating mode.  If no message has arrived since
+     * the last call, the same message is returned again.
+     *
+     * @param channel the channel name (not a regular expression).
+     * @return a Message, or null if none has been received on the channel.
+     * @throws IllegalStateException if the aggregator is not conflating.
+     */
+    public synchronized Message getLatest(String channel)
+    {
+        if (!conflate)
+            throw new IllegalStateException("getLatest requires a conflating MessageAggregator");
+
+        Latest slot = latest.get(channel);
+        if (slot == null)
+            return null;
+        if (slot.data != null)
+            return take(slot);
+        return slot.message;
+    }
+
+    /**
+     * Returns true if the aggregator only keeps the newest message on each
+     * channel.
+     */
+    public boolean isConflating()
+    {
+        return conflate;
+    }
+
     /**
      * Returns the number of received messages waiting to be retrieved.
+     * In conflating mode, this is the number of channels with a message
+     * that has not been retrieved.
      */
     public synchronized int numMessagesAvailable()
     {
-        return messages.size();
+        return num_messages;
     }
 }
@@ -0,0 +1,58 @@
+package lcm.lcm;
+
+import java.io.*;
+import java.lang.reflect.*;
+
+/**
+ * Decodes messages of one lcm-gen generated type, using the type's
+ * <code>DataInput</code> constructor.  A decoder belongs to the
+ * subscription it was created for, so that it does not keep the type's
+ * class loader alive after the subscription is gone.
+ */
+final class MessageDecoder
+{
+    final Class<?> cls;
+    final long fingerprint;
+    final Constructor<?> constructor;
+
+    MessageDecoder(Class<?> cls, long fingerprint, Constructor<?> constructor)
+    {
+        this.cls = cls;
+        this.fingerprint = fingerprint;
+        this.constructor = constructor;
+    }
+
+    /** Return a decoder for an lcm-gen generated class. **/
+    static MessageDecoder forClass(Class<?> cls)
+    {
+        long fingerprint;
+        Constructor<?> constructor;
+        try {
+            fingerprint = cls.getField("LCM_FINGERPRINT").getLong(null);
+            constructor = cls.getConstructor(DataInput.class);
+        } catch (NoSuchFieldException ex) {
+            throw new IllegalArgumentException("LCM: "+cls.getName()+" has no LCM_FINGERPRINT", ex);
+        } catch (NoSuchMethodException ex) {
+            throw new IllegalArgumentException("LCM: "+cls.getName()+" has no DataInput constructor", ex);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalArgumentException("LCM: "+cls.getName()+" is not accessible", ex);
+        }
+
+        return new MessageDecoder(cls, fingerprint, constructor);
+    }
+
+    Object decode(LCMDataInputStream ins) throws IOException
+    {
+        try {
+            return constructor.newInstance(ins);
+        } catch (InvocationTargetException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException("LCM: unable to decode "+cls.getName(), ex.getCause());
+        } catch (InstantiationException ex) {
+            throw new IOException("LCM: unable to decode "+cls.getName(), ex);
+        } catch (IllegalAccessException ex) {
+            throw new IOException("LCM: unable to decode "+cls.getName(), ex);
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package lcm.lcm;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Exposes an LCM subscription as a publisher of messages, with demand-based
+ * backpressure.
+ * <p>
+ * The nested {@link Subscriber} and {@link Subscription} interfaces have the
+ * same methods and rules as their counterparts in Reactive Streams and
+ * <code>java.util.concurrent.Flow</code> (which this library cannot use
+ * directly, since it also runs on Java 8), so bridging to either takes a
+ * few lines of forwarding code.  A subscriber receives messages only as far
+ * as it has asked for them with {@link Subscription#request}.  Messages that
+ * arrive without outstanding demand are buffered, up to the publisher's
+ * capacity, and beyond that the {@link DeliveryPolicy.Overflow} strategy
+ * decides which message is discarded (or, for <code>BLOCK</code>, makes the
+ * provider's thread wait).
+ * <p>
+ * Each subscriber has its own buffer and demand.  Its methods are never
+ * called concurrently: <code>onNext</code> runs either on the thread that
+ * received the message or on a thread that calls <code>request</code>.
+ *
+ * @see LCM#createPublisher
+ */
+public class MessagePublisher implements LCMSubscriber
+{
+    /**
+     * Receives messages from a MessagePublisher.
+     */
+    public interface Subscriber
+    {
+        /** Called once, before any other method. **/
+        public void onSubscribe(Subscription subscription);
+
+        /** Called with each message, at most as many times as requested. **/
+        public void onNext(Message message);
+
+        /** Called at most once, if the subscription failed. **/
+        public void onError(Throwable throwable);
+
+        /** Called at most once, when the publisher is closed. **/
+        public void onComplete();
+    }
+
+    /**
+     * Links a Subscriber to a MessagePublisher.
+     */
+    public interface Subscription
+    {
+        /** Ask for up to <code>n</code> more messages. Long.MAX_VALUE
+         * means no limit.
+         **/
+        public void request(long n);
+
+        /** Stop receiving messages. **/
+        public void cancel();
+    }
+
+    /**
+     * A received message.  The same instance is passed to every subscriber,
+     * so its data must not be modified.
+     */
+    public static final class Message
+    {
+        /** Channel on which the message was received. **/
+        public final String channel;
+        /** The raw data bytes of the message body. **/
+        public final byte data[];
+        /** When the message was received, in microseconds since the
+         * epoch (see {@link LCM#utime}).
+         **/
+        public final long utime;
+
+        public Message(String channel, byte data[])
+        {
+            this(channel, data, 0);
+        }
+
+        public Message(String channel, byte data[], long utime)
+        {
+            this.channel = channel;
+            this.data = data;
+            this.utime = utime;
+        }
+    }
+
+    final LCM lcm;
+    final String regex;
+    final int capacity;
+    final DeliveryPolicy.Overflow overflow;
+
+    final CopyOnWriteArrayList<Sub> subs = new CopyOnWriteArrayList<Sub>();
+    volatile boolean closed = false;
+
+    final AtomicLong numDropped = new AtomicLong();
+
+    MessagePublisher(LCM lcm, String regex, int capacity, DeliveryPolicy.Overflow overflow)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("LCM: capacity must be at least 1");
+        if (overflow == null)
+            throw new IllegalArgumentException("LCM: overflow must not be null");
+
+        this.lcm = lcm;
+        this.regex = regex;
+        this.capacity = capacity;
+        this.overflow = overflow;
+    }
+
+    /**
+     * Add a subscriber.  Its <code>onSubscribe</code> method is called
+     * before this returns.
+     */
+    public void subscribe(Subscriber subscriber)
+    {
+        if (subscriber == null)
+            throw new NullPointerException();
+
+        Sub sub = new Sub(subscriber);
+        subs.add(sub);
+
+        // requests made from onSubscribe are served once it returns.
+        synchronized(sub) {
+            sub.draining = true;
+        }
+        try {
+            subscriber.onSubscribe(sub);
+        } catch (RuntimeException ex) {
+            System.err.println("LCM: "+this+": onSubscribe ex: "+ex);
+            sub.cancel();
+        }
+        synchronized(sub) {
+            sub.draining = false;
+        }
+
+        if (closed)
+            sub.complete();
+        sub.drain();
+    }
+
+    /**
+     * Internal method, called by LCM when a message is received.
+     */
+    public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+    {
+        if (subs.isEmpty())
+            return;
+
+        long utime = LCM.receiveUtime();
+
+        byte data[] = new byte[ins.available()];
+        System.arraycopy(ins.getBuffer(), ins.getBufferOffset(), data, 0, data.length);
+        Message m = new Message(channel, data, utime);
+
+        for (Sub sub : subs) {
+            sub.offer(m);
+            sub.drain();
+        }
+    }
+
+    /**
+     * Unsubscribe from LCM, discard any buffered messages, and complete
+     * every subscriber.
+     */
+    public void close()
+    {
+        if (closed)
+            return;
+
+        try {
+            lcm.unsubscribe(regex, this);
+        } catch (IllegalStateException ex) {
+            // LCM is already closed.
+        }
+        complete();
+    }
+
+    /** Complete every subscriber (also called when LCM is closed). **/
+    void complete()
+    {
+        closed = true;
+        for (Sub sub : subs) {
+            sub.complete();
+            sub.drain();
+        }
+    }
+
+    /** Returns the regular expression this publisher is subscribed to. **/
+    public String getRegex()
+    {
+        return regex;
+    }
+
+    /** Returns the number of messages buffered for each subscriber. **/
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /** Returns the number of subscribers that have not cancelled. **/
+    public int getSubscriberCount()
+    {
+        return subs.size();
+    }
+
+    /**
+     * Returns the number of messages discarded, over all subscribers,
+     * because a subscriber's buffer was full (or, for {@link
+     * DeliveryPolicy.Overflow#CONFLATE}, because a newer message on the same
+     * channel replaced them).
+     */
+    public long getDropCount()
+    {
+        return numDropped.get();
+    }
+
+    public String toString()
+    {
+        return "MessagePublisher(" + regex + ")";
+    }
+
+    static class Entry
+    {
+        Message message;
+    }
+
+    /** One subscriber's buffer and demand. **/
+    class Sub implements Subscription
+    {
+        final Subscriber subscriber;
+
+        // All guarded by "this".
+        ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+        HashMap<String,Entry> pending = new HashMap<String,Entry>(); // CONFLATE only
+        long demand = 0;
+        boolean draining = false;  // a thread is signalling the subscriber
+        boolean cancelled = false;
+        boolean done = false;      // complete or error to be signalled
+        boolean terminated = false;
+        Throwable error;
+
+        Sub(Subscriber subscriber)
+        {
+            this.subscriber = subscriber;
+        }
+
+        /** Buffer a message, applying the overflow strategy if the
+         * buffer is full.
+         **/
+        synchronized void offer(Message m)
+        {
+            if (cancelled || done)
+                return;
+
+            if (overflow == DeliveryPolicy.Overflow.CONFLATE) {
+                Entry e = pending.get(m.channel);
+                if (e != null) {
+                    // replace the buffered message in place.
+                    e.message = m;
+                    numDropped.incrementAndGet();
+                    return;
+                }
+            }
+
+            while (queue.size() >= capacity) {
+                switch (overflow) {
+                    case DROP_NEWEST:
+                        numDropped.incrementAndGet();
+                        return;
+                    case BLOCK:
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                        if (cancelled || done)
+                            return;
+                        break;
+                    default:
+                        Entry old = queue.removeFirst();
+                        pending.remove(old.message.channel);
+                        numDropped.incrementAndGet();
+                        break;
+                }
+            }
+
+            Entry e = new Entry();
+            e.message = m;
+            queue.addLast(e);
+            if (overflow == DeliveryPolicy.Overflow.CONFLATE)
+                pending.put(m.channel, e);
+        }
+
+        public void request(long n)
+        {
+            synchronized(this) {
+                if (cancelled || terminated)
+                    return;
+
+                if (n <= 0) {
+                    error = new IllegalArgumentException("LCM: request must be positive, not "+n);
+                    discard();
+                } else {
+                    demand += n;
+                    if (demand < 0)
+                        demand = Long.MAX_VALUE;
+                }
+            }
+            drain();
+        }
+
+        public void cancel()
+        {
+            synchronized(this) {
+                cancelled = true;
+                queue.clear();
+                pending.clear();
+                notifyAll();
+            }
+            subs.remove(this);
+        }
+
+        synchronized void complete()
+        {
+            discard();
+        }
+
+        /** Drop the buffered messages and arrange for the subscriber to
+         * be terminated.
+         **/
+        void discard()
+        {
+            done = true;
+            queue.clear();
+            pending.clear();
+            notifyAll();
+        }
+
+        /** Signal the subscriber until there is nothing more it may
+         * receive. Only one thread does this at a time; the others
+         * leave their work to it.
+         **/
+        void drain()
+        {
+            synchronized(this) {
+                if (draining)
+                    return;
+                draining = true;
+            }
+
+            while (true) {
+                Message m = null;
+                boolean terminate = false;
+
+                synchronized(this) {
+                    if (cancelled) {
+                        draining = false;
+                        return;
+                    }
+
+                    if (done && !terminated) {
+                        terminated = true;
+                        terminate = true;
+                    } else if (demand > 0 && !queue.isEmpty()) {
+                        m = queue.removeFirst().message;
+                        pending.remove(m.channel);
+                        if (demand != Long.MAX_VALUE)
+                            demand--;
+
+                        // wake up any provider thread blocked on a full buffer.
+                        notifyAll();
+                    } else {
+                        draining = false;
+                        return;
+                    }
+                }
+
+                if (terminate) {
+                    subs.remove(this);
+                    try {
+                        if (error != null)
+                            subscriber.onError(error);
+                        else
+                            subscriber.onComplete();
+                    } catch (RuntimeException ex) {
+                        System.err.println("LCM: "+MessagePublisher.this+": subscriber ex: "+ex);
+                    }
+                    continue;
+                }
+
+                try {
+                    subscriber.onNext(m);
+                } catch (RuntimeException ex) {
+                    // a subscriber must not throw; treat it as cancelled.
+                    System.err.println("LCM: "+MessagePublisher.this+": subscriber ex: "+ex);
+                    cancel();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package lcm.lcm;
+
+import java.net.*;
+import java.util.*;
+
+/**
+ * Packet loss counters for a multicast provider.
+ * <p>
+ * Every datagram carries its sender's message sequence number.  The
+ * provider tracks the highest number seen from each sender, plus which of
+ * the 64 numbers before it have arrived, and from that counts messages
+ * that are missing (lost), that arrived after a later message (reordered),
+ * or that arrived twice (duplicates).  A message counted as lost is
+ * uncounted if it turns up late.  A jump of more than 65536 in a sender's
+ * sequence numbers is taken to mean that the sender restarted, and is not
+ * counted.
+ * <p>
+ * Fragmented messages that were started but never completed (because a
+ * fragment was lost, or they timed out or were evicted) are counted
+ * separately, as incomplete.  Messages dropped on arrival because no
+ * subscription matched their channel are counted as filtered.
+ *
+ * @see LCM#getMulticastStats
+ */
+public class MulticastStats
+{
+    static class Sender
+    {
+        int highest;  // highest sequence number seen
+        long window;  // bit i: highest - i has been seen
+        long lastSeen;
+    }
+
+    static final int  RESTART_DISTANCE = 1 << 16;
+    static final long PRUNE_INTERVAL_NS = 10000000000L;
+    static final long SENDER_IDLE_NS = 60000000000L;
+
+    final String name;
+    final FragmentReassembler reassembler;
+
+    // All guarded by "this".
+    HashMap<SocketAddress,Sender> senders = new HashMap<SocketAddress,Sender>();
+    long lastPrune = System.nanoTime();
+
+    long numPackets = 0;
+    long numShortMessages = 0;
+    long numLost = 0;
+    long numReordered = 0;
+    long numDuplicates = 0;
+    long numInvalid = 0;
+    long numFiltered = 0;
+
+    MulticastStats(String name, FragmentReassembler reassembler)
+    {
+        this.name = name;
+        this.reassembler = reassembler;
+    }
+
+    /** Account for a datagram. Fragments of one message share a
+     * sequence number, so for fragments a repeated number is expected.
+     **/
+    synchronized void sequence(SocketAddress from, int msgSeqNumber, boolean fragment)
+    {
+        numPackets++;
+        if (!fragment)
+            numShortMessages++;
+
+        long now = System.nanoTime();
+        if (now - lastPrune > PRUNE_INTERVAL_NS)
+            prune(now);
+
+        Sender s = senders.get(from);
+        if (s == null) {
+            s = new Sender();
+            s.highest = msgSeqNumber;
+            s.window = 1;
+            s.lastSeen = now;
+            senders.put(from, s);
+            return;
+        }
+        s.lastSeen = now;
+
+        int d = msgSeqNumber - s.highest; // wraps around like the sequence numbers
+
+        if (d > 0 && d < RESTART_DISTANCE) {
+            numLost += d - 1;
+            s.window = (d >= 64) ? 1 : ((s.window << d) | 1);
+            s.highest = msgSeqNumber;
+        } else if (d <= 0 && d > -64) {
+            long bit = 1L << -d;
+            if ((s.window & bit) != 0) {
+                if (!fragment)
+                    numDuplicates++;
+            } else {
+                s.window |= bit;
+                numReordered++;
+                if (numLost > 0)
+                    numLost--;
+            }
+        } else if (d <= -64 && d > -RESTART_DISTANCE) {
+            // too old to tell whether it was seen; assume it is late.
+            numReordered++;
+            if (numLost > 0)
+                numLost--;
+        } else {
+            s.highest = msgSeqNumber;
+            s.window = 1;
+        }
+    }
+
+    synchronized void invalid()
+    {
+        numInvalid++;
+    }
+
+    synchronized void filtered()
+    {
+        numFiltered++;
+    }
+
+    void prune(long now)
+    {
+        lastPrune = now;
+        for (Iterator<Sender> it = senders.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().lastSeen > SENDER_IDLE_NS)
+                it.remove();
+        }
+    }
+
+    /** Returns the number of datagrams received. **/
+    public synchronized long getPacketCount()
+    {
+        return numPackets;
+    }
+
+    /** Returns the number of complete messages received, fragmented or not. **/
+    public long getMessageCount()
+    {
+        long completed;
+        synchronized(reassembler) {
+            completed = reassembler.numCompleted;
+        }
+        synchronized(this) {
+            return numShortMessages + completed;
+        }
+    }
+
+    /** Returns the number of messages missing from the senders' sequences. **/
+    public synchronized long getLostCount()
+    {
+        return numLost;
+    }
+
+    /** Returns the number of messages that arrived after a later message
+     * from the same sender.
+     **/
+    public synchronized long getReorderedCount()
+    {
+        return numReordered;
+    }
+
+    /** Returns the number of messages and fragments received more than once. **/
+    public long getDuplicateCount()
+    {
+        long fragments;
+        synchronized(reassembler) {
+            fragments = reassembler.numDuplicates;
+        }
+        synchronized(this) {
+            return numDuplicates + fragments;
+        }
+    }
+
+    /** Returns the number of fragmented messages that were discarded
+     * before all of their fragments arrived, or because they were larger
+     * than the <code>frag_max_bytes</code> limit.
+     **/
+    public long getIncompleteCount()
+    {
+        // partial messages otherwise only time out when fragments arrive.
+        reassembler.expire();
+        synchronized(reassembler) {
+            return reassembler.numExpired + reassembler.numEvicted + reassembler.numOversized;
+        }
+    }
+
+    /** Returns the number of datagrams that were malformed. **/
+    public long getInvalidCount()
+    {
+        long fragments;
+        synchronized(reassembler) {
+            fragments = reassembler.numInvalid;
+        }
+        synchronized(this) {
+            return numInvalid + fragments;
+        }
+    }
+
+    /** Returns the number of messages that were dropped because no
+     * subscription matched their channel.
+     **/
+    public synchronized long getFilteredCount()
+    {
+        return numFiltered;
+    }
+
+    /** Returns the number of senders heard from in the last minute or so. **/
+    public synchronized int getSenderCount()
+    {
+        return senders.size();
+    }
+
+    public String toString()
+    {
+        return name + ": " + getPacketCount() + " packets, " +
+            getMessageCount() + " messages, " +
+            getLostCount() + " lost, " +
+            getReorderedCount() + " reordered, " +
+            getDuplicateCount() + " duplicates, " +
+            getIncompleteCount() + " incomplete, " +
+            getInvalidCount() + " invalid, " +
+            getFilteredCount() + " filtered";
+    }
+}
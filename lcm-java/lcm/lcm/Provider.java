@@ -5,7 +5,9 @@ package lcm.lcm;
 
     The provider should call LCM.receiveMessage() upon receipt of a
     message. LCM.receiveMessage() is thread-safe and can be called from
-    any thread.
+    any thread. Providers should read LCM.utime() as soon as the message
+    has arrived, and pass it to receiveMessage(), so that subscribers see
+    when it was received rather than when it was dispatched.
 
 **/
 public interface Provider
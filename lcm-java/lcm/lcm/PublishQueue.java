@@ -0,0 +1,343 @@
+package lcm.lcm;
+
+import java.util.*;
+
+/**
+ * Publishes messages on a provider from a dedicated sender thread.
+ * <p>
+ * A provider URL with the <code>publish_queue=N</code> option is wrapped in
+ * a PublishQueue.  {@link LCM#publish(String, byte[], int, int)} then copies
+ * the message into a bounded queue of up to N messages and returns, and the
+ * sender thread hands the queued messages to the provider in batches.  A
+ * slow or unreachable provider therefore no longer blocks the publishing
+ * threads.
+ * <p>
+ * The <code>publish_overflow</code> option selects what happens when the
+ * queue is full, using the names of {@link DeliveryPolicy.Overflow}:
+ * <code>drop_oldest</code> (the default), <code>drop_newest</code>,
+ * <code>block</code>, or <code>conflate</code>.
+ *
+ * @see LCM#getPublishQueues
+ * @see LCM#flush
+ */
+public class PublishQueue implements Provider
+{
+    static class Slot
+    {
+        String channel;
+        byte data[];
+        int length;
+    }
+
+    // Buffers larger than this are not kept for reuse.
+    static final int MAX_POOLED_SIZE = 1 << 20;
+
+    // How long close() waits for the provider to accept queued messages.
+    static final long CLOSE_TIMEOUT_MS = 1000;
+
+    final Provider provider;
+    final int capacity;
+    final DeliveryPolicy.Overflow overflow;
+    final String name;
+
+    // All guarded by "this".
+    ArrayDeque<Slot> queue = new ArrayDeque<Slot>();
+    ArrayDeque<Slot> free = new ArrayDeque<Slot>();
+    HashMap<String,Slot> pending = new HashMap<String,Slot>(); // CONFLATE only
+    int inFlight = 0;
+    boolean closed = false;
+
+    long numPublished = 0;
+    long numDropped = 0;
+    long numBlocked = 0;
+    int maxQueueDepth = 0;
+
+    SenderThread sender;
+
+    PublishQueue(Provider provider, String name, int capacity, DeliveryPolicy.Overflow overflow)
+    {
+        this.provider = provider;
+        this.name = name;
+        this.capacity = capacity;
+        this.overflow = overflow;
+
+        sender = new SenderThread();
+        sender.start();
+    }
+
+    /** Create a PublishQueue for a provider if its URL asks for one. **/
+    static Provider wrap(Provider provider, String url, URLParser up)
+    {
+        int capacity = up.get("publish_queue", 0);
+        if (capacity <= 0)
+            return provider;
+
+        String ov = up.get("publish_overflow", "drop_oldest");
+        DeliveryPolicy.Overflow overflow;
+        try {
+            overflow = DeliveryPolicy.Overflow.valueOf(ov.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            System.err.println("LCM: Unknown publish_overflow: "+ov+", using drop_oldest");
+            overflow = DeliveryPolicy.Overflow.DROP_OLDEST;
+        }
+
+        return new PublishQueue(provider, url, capacity, overflow);
+    }
+
+    public void publish(String channel, byte data[], int offset, int length)
+    {
+        Slot slot;
+        synchronized(this) {
+            if (closed)
+                return;
+
+            if (overflow == DeliveryPolicy.Overflow.CONFLATE) {
+                slot = pending.get(channel);
+                if (slot != null) {
+                    // overwrite the queued message in place.
+                    fill(slot, channel, data, offset, length);
+                    numDropped++;
+                    return;
+                }
+            }
+
+            while (queue.size() >= capacity) {
+                if (overflow == DeliveryPolicy.Overflow.DROP_NEWEST) {
+                    numDropped++;
+                    return;
+                } else if (overflow == DeliveryPolicy.Overflow.BLOCK) {
+                    numBlocked++;
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    if (closed)
+                        return;
+                } else {
+                    Slot old = queue.removeFirst();
+                    pending.remove(old.channel);
+                    recycle(old);
+                    numDropped++;
+                }
+            }
+
+            slot = free.pollFirst();
+            if (slot == null)
+                slot = new Slot();
+
+            // Copying under the lock keeps the queue in publish order.
+            fill(slot, channel, data, offset, length);
+            queue.addLast(slot);
+            if (overflow == DeliveryPolicy.Overflow.CONFLATE)
+                pending.put(channel, slot);
+
+            maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+            notifyAll();
+        }
+    }
+
+    static void fill(Slot slot, String channel, byte data[], int offset, int length)
+    {
+        if (slot.data == null || slot.data.length < length)
+            slot.data = new byte[length];
+        System.arraycopy(data, offset, slot.data, 0, length);
+        slot.channel = channel;
+        slot.length = length;
+    }
+
+    void recycle(Slot slot)
+    {
+        slot.channel = null;
+        if (slot.data.length <= MAX_POOLED_SIZE)
+            free.addLast(slot);
+    }
+
+    public void subscribe(String channel)
+    {
+        provider.subscribe(channel);
+    }
+
+    public void unsubscribe(String channel)
+    {
+        provider.unsubscribe(channel);
+    }
+
+    /** Wait until every message queued so far has been handed to the
+     * provider.
+     **/
+    public void flush() throws InterruptedException
+    {
+        flush(-1);
+    }
+
+    /** Wait until every message queued so far has been handed to the
+     * provider, or until the timeout expires.
+     *
+     * @param timeout_ms Max # of milliseconds to wait. If less than 0,
+     * then wait indefinitely.
+     * @return true if the queue was flushed.
+     **/
+    public synchronized boolean flush(long timeout_ms) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout_ms;
+
+        while (!closed && (!queue.isEmpty() || inFlight > 0)) {
+            if (timeout_ms < 0) {
+                wait();
+            } else {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return false;
+                wait(remaining);
+            }
+        }
+
+        return queue.isEmpty() && inFlight == 0;
+    }
+
+    /** Send the messages that are still queued (waiting at most
+     * CLOSE_TIMEOUT_MS for the provider to accept them), then close the
+     * provider. A sender thread that is still stuck in the provider is
+     * interrupted; if even that does not stop it, the provider is left
+     * open rather than closed underneath it.
+     **/
+    public void close()
+    {
+        try {
+            if (!flush(CLOSE_TIMEOUT_MS))
+                System.err.println("LCM: "+name+": discarding "+getQueueDepth()+" unsent messages");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized(this) {
+            closed = true;
+            notifyAll();
+        }
+
+        try {
+            sender.join(CLOSE_TIMEOUT_MS);
+            if (sender.isAlive()) {
+                sender.interrupt();
+                sender.join(CLOSE_TIMEOUT_MS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (sender.isAlive()) {
+            System.err.println("LCM: "+name+": sender thread is stuck in publish, not closing the provider");
+            return;
+        }
+
+        provider.close();
+    }
+
+    /** Returns the provider that messages are published on. **/
+    public Provider getProvider()
+    {
+        return provider;
+    }
+
+    /** Returns the maximum number of queued messages. **/
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /** Returns the number of messages waiting to be sent. **/
+    public synchronized int getQueueDepth()
+    {
+        return queue.size();
+    }
+
+    /** Returns the largest number of messages that have been queued at once. **/
+    public synchronized int getMaxQueueDepth()
+    {
+        return maxQueueDepth;
+    }
+
+    /** Returns the number of messages handed to the provider. **/
+    public synchronized long getPublishedCount()
+    {
+        return numPublished;
+    }
+
+    /** Returns the number of messages discarded because the queue was full. **/
+    public synchronized long getDropCount()
+    {
+        return numDropped;
+    }
+
+    /** Returns the number of times a publisher had to wait for the queue
+     * to drain (only with <code>publish_overflow=block</code>).
+     **/
+    public synchronized long getBlockedCount()
+    {
+        return numBlocked;
+    }
+
+    public String toString()
+    {
+        return "PublishQueue(" + name + ")";
+    }
+
+    class SenderThread extends Thread
+    {
+        ArrayList<Slot> batch = new ArrayList<Slot>();
+
+        SenderThread()
+        {
+            super("LCM publish queue");
+            setDaemon(true);
+        }
+
+        public void run()
+        {
+            while (true) {
+                synchronized(PublishQueue.this) {
+                    while (queue.isEmpty() && !closed) {
+                        try {
+                            PublishQueue.this.wait();
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+
+                    if (closed)
+                        return;
+
+                    // take everything that is pending in one go.
+                    while (!queue.isEmpty())
+                        batch.add(queue.removeFirst());
+                    pending.clear();
+                    inFlight = batch.size();
+
+                    // wake up any blocked publishers.
+                    PublishQueue.this.notifyAll();
+                }
+
+                for (Slot slot : batch) {
+                    if (isInterrupted())
+                        break; // close() gave up waiting for us.
+                    try {
+                        provider.publish(slot.channel, slot.data, 0, slot.length);
+                    } catch (RuntimeException ex) {
+                        System.err.println("LCM: "+name+": publish ex: "+ex);
+                    }
+                }
+
+                synchronized(PublishQueue.this) {
+                    for (Slot slot : batch)
+                        recycle(slot);
+                    numPublished += batch.size();
+                    inFlight = 0;
+                    PublishQueue.this.notifyAll();
+                }
+                batch.clear();
+            }
+        }
+    }
+}
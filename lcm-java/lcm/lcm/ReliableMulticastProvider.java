@@ -0,0 +1,691 @@
+package lcm.lcm;
+
+import java.net.*;
+import java.io.*;
+import java.util.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/** LCM provider for the udpr: URL. Messages are multicast exactly as by
+ * the udpm: provider, but lost messages are recovered. udpm: receivers
+ * on the same group see the messages too, and ignore the NAKs and
+ * heartbeats, but they deliver each retransmitted message again: a udpm:
+ * listener can see duplicates, and does not get lost messages back in
+ * order.
+ *
+ * Each sender keeps its most recent messages, by sequence number, in a
+ * bounded retransmission buffer (<code>retransmit_buffer</code> messages,
+ * default 1024, and at most <code>retransmit_bytes</code> bytes, default
+ * 16 MB). A receiver that sees a gap in a sender's sequence numbers
+ * multicasts a NAK naming the sender and the missing numbers, every
+ * <code>nak_interval_ms</code> (default 20) until they arrive; receivers
+ * that hear another's NAK for the same gap hold back their own. The
+ * sender multicasts the messages again, so every receiver that lost them
+ * can use the copy. Senders also multicast a heartbeat every
+ * <code>heartbeat_ms</code> (default 100), giving their latest sequence
+ * number, so that losing a sender's last message is noticed too.
+ *
+ * Each sender's messages are delivered in the order they were sent, so
+ * every channel is delivered in order. Messages that arrive after a gap
+ * are held (at most <code>max_held</code> per sender, default 1024) until
+ * it is filled. A gap is given up on, and counted as unrecoverable, when
+ * the sender no longer has the messages, after
+ * <code>nak_timeout_ms</code> (default 1000), or when too many messages
+ * are held behind it.
+ *
+ * For testing, <code>drop_rate=P</code> discards each received data
+ * datagram with probability P. See {@link ReliableMulticastStats} for the
+ * counters.
+ *
+ * The <code>iface</code>, <code>ttl</code>, <code>rcvbuf</code>,
+ * <code>sndbuf</code>, <code>max_rate</code>, <code>compress</code> and
+ * <code>frag_*</code> options work as for udpm:. A single thread receives,
+ * so <code>rx_threads</code> and <code>busy_poll</code> are ignored.
+ **/
+public class ReliableMulticastProvider extends UDPMulticastProvider
+{
+    static final String DEFAULT_NETWORK = "239.255.76.68:7667";
+
+    static final int    DEFAULT_RETRANSMIT_BUFFER = 1024;
+    static final int    DEFAULT_RETRANSMIT_BYTES = 16 << 20;
+    static final int    DEFAULT_NAK_INTERVAL_MS = 20;
+    static final int    DEFAULT_NAK_TIMEOUT_MS = 1000;
+    static final int    DEFAULT_HEARTBEAT_MS = 100;
+    static final int    DEFAULT_MAX_HELD = 1024;
+
+    static final int    TICK_MS = 5;
+    static final long   NAK_DELAY_NS = 2000000;   // lets reordered datagrams arrive first
+    static final long   RETRANSMIT_HOLDOFF_NS = 5000000; // answers NAKs from many receivers once
+    static final long   SOURCE_IDLE_NS = 60000000000L;
+    static final int    MAX_NAK_RANGES = 64;
+    static final int    MAX_PACKETS_PER_TICK = 256;
+    static final int    RESTART_DISTANCE = 1 << 16;
+
+    /** A message kept for retransmission. **/
+    static final class Sent
+    {
+        final int seq;
+        final String channel;
+        final byte data[];
+        long lastRetransmit;
+
+        Sent(int seq, String channel, byte data[])
+        {
+            this.seq = seq;
+            this.channel = channel;
+            this.data = data;
+            this.lastRetransmit = System.nanoTime() - RETRANSMIT_HOLDOFF_NS;
+        }
+    }
+
+    // The retransmission buffer holds the messages numbered
+    // oldestRetained to oldestRetained + retainedCount - 1, each at index
+    // (seq & (retained.length - 1)). All guarded by "this".
+    Sent        retained[];
+    int         retainedCount = 0;
+    int         oldestRetained;
+    long        retainedBytes = 0;
+    long        maxRetainedBytes;
+    boolean     published = false;
+    long        lastHeartbeat;
+    ByteBuffer  controlHeader = ByteBuffer.allocateDirect(12 + 6 * MAX_NAK_RANGES);
+    ByteBuffer  empty = ByteBuffer.allocate(0);
+
+    long        nakIntervalNanos;
+    long        nakTimeoutNanos;
+    long        heartbeatNanos;
+    int         maxHeld;
+    double      dropRate;
+
+    // Retransmissions may be sent while a publish is paced, so they
+    // compress with their own codec. Guarded by "this".
+    LZ4Codec    retransmitCompressor;
+
+    ReliableMulticastStats rstats;
+    Selector    selector;
+    ReliableReader reader;
+
+    // Where NAKs for this sender are addressed; changes if the send
+    // channel is reopened.
+    volatile InetSocketAddress localAddress;
+
+    public ReliableMulticastProvider(LCM lcm, URLParser up) throws IOException
+    {
+        super(lcm, up, DEFAULT_NETWORK);
+
+        int capacity = Math.max(2, up.get("retransmit_buffer", DEFAULT_RETRANSMIT_BUFFER));
+        retained = new Sent[Integer.highestOneBit(capacity - 1) << 1];
+        maxRetainedBytes = up.get("retransmit_bytes", DEFAULT_RETRANSMIT_BYTES);
+
+        nakIntervalNanos = up.get("nak_interval_ms", DEFAULT_NAK_INTERVAL_MS) * 1000000L;
+        nakTimeoutNanos = up.get("nak_timeout_ms", DEFAULT_NAK_TIMEOUT_MS) * 1000000L;
+        heartbeatNanos = up.get("heartbeat_ms", DEFAULT_HEARTBEAT_MS) * 1000000L;
+        int held = Math.max(2, up.get("max_held", DEFAULT_MAX_HELD));
+        maxHeld = Integer.highestOneBit(held - 1) << 1;
+        dropRate = up.get("drop_rate", 0.0);
+        if (dropRate > 0)
+            System.err.println("LCM: Dropping "+(dropRate * 100)+"% of received datagrams on purpose.");
+
+        stats = rstats = new ReliableMulticastStats(stats.name, reassembler);
+        if (compressor != null)
+            retransmitCompressor = new LZ4Codec();
+
+        try {
+            selector = Selector.open();
+            recvChannel.configureBlocking(false);
+            recvChannel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException ex) {
+            super.close();
+            if (selector != null)
+                selector.close();
+            throw ex;
+        }
+
+        // NAKs must be answered even without subscriptions, so the
+        // reader always runs.
+        reader = new ReliableReader();
+        readers = new ReaderThread[] { reader };
+        reader.start();
+    }
+
+    DatagramChannel openSendChannel() throws IOException
+    {
+        DatagramChannel ch = super.openSendChannel();
+        localAddress = (InetSocketAddress) ch.getLocalAddress();
+        return ch;
+    }
+
+    void publishEx(String channel, byte data[], int offset, int length) throws IOException
+    {
+        int seq = msgSeqNumber;
+        super.publishEx(channel, data, offset, length);
+        retain(seq, channel, data, offset, length);
+    }
+
+    /** Keep a copy of a sent message for retransmission. Caller must
+     * hold the lock.
+     **/
+    void retain(int seq, String channel, byte data[], int offset, int length)
+    {
+        published = true;
+
+        if (retainedCount == retained.length)
+            evictOldest();
+        while (retainedCount > 0 && retainedBytes + length > maxRetainedBytes)
+            evictOldest();
+
+        if (length > maxRetainedBytes) {
+            // too large to keep; NAKs for it will be told so.
+            oldestRetained = seq + 1;
+            return;
+        }
+
+        if (retainedCount == 0)
+            oldestRetained = seq;
+        retained[seq & (retained.length - 1)] =
+            new Sent(seq, channel, Arrays.copyOfRange(data, offset, offset + length));
+        retainedCount++;
+        retainedBytes += length;
+    }
+
+    void evictOldest()
+    {
+        int idx = oldestRetained & (retained.length - 1);
+        retainedBytes -= retained[idx].data.length;
+        retained[idx] = null;
+        oldestRetained++;
+        retainedCount--;
+    }
+
+    Sent findRetained(int seq)
+    {
+        Sent s = retained[seq & (retained.length - 1)];
+        return (s != null && s.seq == seq) ? s : null;
+    }
+
+    /** Multicast this sender's latest sequence number, and the oldest one
+     * it can still retransmit. Caller must hold the lock.
+     **/
+    void sendHeartbeat(long now) throws IOException
+    {
+        lastHeartbeat = now;
+
+        ByteBuffer header = controlHeader;
+        header.clear();
+        header.putInt(MAGIC_HEARTBEAT);
+        header.putInt(msgSeqNumber - 1);
+        header.putInt(retainedCount > 0 ? oldestRetained : msgSeqNumber);
+        header.flip();
+        sendDatagram(header, empty);
+    }
+
+    /** Retransmit the messages named in a NAK addressed to this sender. **/
+    synchronized void retransmit(ByteBuffer nak, int nranges, long now) throws IOException
+    {
+        rstats.nakReceived();
+
+        boolean unavailable = false;
+        for (int i = 0; i < nranges; i++) {
+            int first = nak.getInt(12 + 6 * i);
+            int count = Math.min(nak.getShort(16 + 6 * i) & 0xffff, retained.length);
+
+            for (int seq = first; seq != first + count; seq++) {
+                Sent s = findRetained(seq);
+                if (s == null) {
+                    unavailable = true;
+                    continue;
+                }
+                // several receivers may NAK the same message at once.
+                if (now - s.lastRetransmit < RETRANSMIT_HOLDOFF_NS)
+                    continue;
+                s.lastRetransmit = now;
+                sendMessage(retransmitCompressor, seq, s.channel, s.data, 0, s.data.length);
+                rstats.retransmitted();
+            }
+        }
+
+        // tell the receivers to stop waiting for what we no longer have.
+        if (unavailable)
+            sendHeartbeat(now);
+    }
+
+    /** Returns the loss and retransmission counters for this provider. **/
+    public ReliableMulticastStats getStats()
+    {
+        return rstats;
+    }
+
+    /** The reader always runs; see the constructor. **/
+    public void subscribe(String channel) { }
+
+    public void close()
+    {
+        // stop the reader without the lock, which it takes to send.
+        ReliableReader r;
+        synchronized(this) {
+            r = reader;
+            reader = null;
+            readers = null;
+        }
+        if (r == null)
+            return;
+
+        r.interrupt();
+        try {
+            r.join();
+        } catch (InterruptedException ex) {
+        }
+
+        super.close();
+        try {
+            selector.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    /** A message received ahead of a gap. **/
+    static final class Held
+    {
+        final int seq;
+        final long utime;
+        final String channel; // null if no subscription wanted it
+        final byte data[];
+
+        Held(int seq, long utime, String channel, byte data[])
+        {
+            this.seq = seq;
+            this.utime = utime;
+            this.channel = channel;
+            this.data = data;
+        }
+    }
+
+    /** What a receiver knows about one sender. **/
+    final class Source
+    {
+        final SocketAddress from;
+        int next;         // next sequence number to deliver
+        int known;        // highest sequence number known to have been sent
+        Held held[] = new Held[maxHeld];
+        int gapSeq;       // the missing message gapSince refers to
+        long gapSince;
+        long lastNak;
+        long lastHeard;
+
+        Source(SocketAddress from, int next, long now)
+        {
+            this.from = from;
+            this.next = next;
+            this.known = next - 1;
+            this.gapSeq = next - 1;
+            this.lastNak = now - nakIntervalNanos;
+            this.lastHeard = now;
+        }
+
+        Held held(int seq)
+        {
+            Held h = held[seq & (held.length - 1)];
+            return (h != null && h.seq == seq) ? h : null;
+        }
+
+        boolean missing()
+        {
+            return known - next >= 0;
+        }
+    }
+
+    /** Receives data, NAKs and heartbeats, and sends NAKs and heartbeats
+     * between datagrams. It is the only thread that touches the Sources.
+     **/
+    class ReliableReader extends ReaderThread
+    {
+        HashMap<SocketAddress,Source> sources = new HashMap<SocketAddress,Source>();
+        Random random = new Random();
+
+        // about the datagram being handled
+        long now;
+        boolean late;
+
+        public void run()
+        {
+            while (!isInterrupted()) {
+                try {
+                    selector.select(TICK_MS);
+                    selector.selectedKeys().clear();
+
+                    for (int i = 0; i < MAX_PACKETS_PER_TICK; i++) {
+                        packet.clear();
+                        SocketAddress from = recvChannel.receive(packet);
+                        if (from == null)
+                            break;
+                        utime = LCM.utime();
+                        packet.flip();
+                        try {
+                            handlePacket(packet, from);
+                        } catch (IOException ex) {
+                            System.err.println("ex: "+ex);
+                        }
+                    }
+
+                    tick(System.nanoTime());
+                } catch (ClosedChannelException ex) {
+                    return;
+                } catch (ClosedSelectorException ex) {
+                    return;
+                } catch (IOException ex) {
+                    System.err.println("ex: "+ex);
+                }
+            }
+        }
+
+        void handlePacket(ByteBuffer packet, SocketAddress from) throws IOException
+        {
+            now = System.nanoTime();
+            late = false;
+
+            if (packet.remaining() >= 8) {
+                int magic = packet.getInt(0);
+                if (magic == MAGIC_NAK) {
+                    handleNak(packet);
+                    return;
+                }
+                if (magic == MAGIC_HEARTBEAT) {
+                    handleHeartbeat(packet, from);
+                    return;
+                }
+
+                boolean fragment = (magic == MAGIC_LONG || magic == MAGIC_LONG_COMPRESSED);
+                if (fragment || magic == MAGIC_SHORT || magic == MAGIC_SHORT_COMPRESSED) {
+                    if (dropRate > 0 && random.nextDouble() < dropRate) {
+                        rstats.injectedDrop();
+                        return;
+                    }
+                    seen(from, packet.getInt(4), fragment);
+                }
+            }
+
+            super.handlePacket(packet, from);
+        }
+
+        /** Account for a data datagram, before it is handled. **/
+        void seen(SocketAddress from, int msgSeqNumber, boolean fragment)
+        {
+            Source s = sources.get(from);
+            if (s == null) {
+                s = new Source(from, msgSeqNumber, now);
+                sources.put(from, s);
+            }
+            s.lastHeard = now;
+
+            int d = msgSeqNumber - s.next;
+            if (d >= RESTART_DISTANCE || d <= -RESTART_DISTANCE)
+                restart(s, msgSeqNumber);
+
+            // a fragment shows that the messages before it were sent; a
+            // short message shows that it was, too.
+            late = msgSeqNumber - s.known <= 0;
+            advance(s, fragment ? msgSeqNumber - 1 : msgSeqNumber);
+        }
+
+        /** The sender has sent at least up to <code>known</code>. **/
+        void advance(Source s, int known)
+        {
+            if (known - s.known <= 0)
+                return;
+            s.known = known;
+
+            // hold at most held.length messages behind the gap.
+            if (known - s.next >= s.held.length)
+                giveUp(s, known - s.held.length + 1);
+        }
+
+        /** Forget everything about a sender that appears to have
+         * restarted.
+         **/
+        void restart(Source s, int next)
+        {
+            giveUp(s, s.known + 1);
+            s.next = next;
+            s.known = next - 1;
+        }
+
+        void deliver(SocketAddress from, int msgSeqNumber, long utime, String channel,
+                     byte data[], int offset, int length)
+        {
+            complete(from, msgSeqNumber, utime, channel, data, offset, length);
+        }
+
+        void filtered(SocketAddress from, int msgSeqNumber)
+        {
+            super.filtered(from, msgSeqNumber);
+            complete(from, msgSeqNumber, 0, null, null, 0, 0);
+        }
+
+        /** Deliver a complete message, or hold it if messages before it
+         * are missing.
+         **/
+        void complete(SocketAddress from, int msgSeqNumber, long utime, String channel,
+                      byte data[], int offset, int length)
+        {
+            Source s = sources.get(from);
+            if (s == null) {
+                if (channel != null)
+                    super.deliver(from, msgSeqNumber, utime, channel, data, offset, length);
+                return;
+            }
+
+            int d = msgSeqNumber - s.next;
+            if (d < 0)
+                return; // delivered or given up on already
+            if (late)
+                rstats.recovered();
+
+            if (d >= s.held.length)
+                giveUp(s, msgSeqNumber - s.held.length + 1);
+
+            if (msgSeqNumber == s.next) {
+                if (channel != null)
+                    super.deliver(from, msgSeqNumber, utime, channel, data, offset, length);
+                s.next++;
+                drain(s);
+                return;
+            }
+
+            int idx = msgSeqNumber & (s.held.length - 1);
+            if (s.held[idx] != null && s.held[idx].seq == msgSeqNumber)
+                return;
+            s.held[idx] = new Held(msgSeqNumber, utime, channel, channel == null ? null :
+                                   Arrays.copyOfRange(data, offset, offset + length));
+        }
+
+        /** Deliver the held messages that are next in sequence. **/
+        void drain(Source s)
+        {
+            Held h;
+            while ((h = s.held(s.next)) != null) {
+                s.held[s.next & (s.held.length - 1)] = null;
+                s.next++;
+                if (h.channel != null)
+                    super.deliver(s.from, h.seq, h.utime, h.channel, h.data, 0, h.data.length);
+            }
+        }
+
+        /** Stop waiting for the messages before <code>upTo</code>:
+         * deliver those that are held, and count the rest as lost.
+         **/
+        void giveUp(Source s, int upTo)
+        {
+            int lost = 0;
+            while (upTo - s.next > 0) {
+                Held h = s.held(s.next);
+                if (h == null) {
+                    lost++;
+                    s.next++;
+                    continue;
+                }
+                s.held[s.next & (s.held.length - 1)] = null;
+                s.next++;
+                if (h.channel != null)
+                    super.deliver(s.from, h.seq, h.utime, h.channel, h.data, 0, h.data.length);
+            }
+            drain(s);
+
+            if (lost > 0)
+                rstats.unrecoverable(lost);
+        }
+
+        void handleHeartbeat(ByteBuffer packet, SocketAddress from)
+        {
+            if (packet.remaining() < 12) {
+                stats.invalid();
+                return;
+            }
+            int latest = packet.getInt(4);
+            int oldest = packet.getInt(8);
+
+            Source s = sources.get(from);
+            if (s == null) {
+                // nothing before this heartbeat is expected.
+                sources.put(from, new Source(from, latest + 1, now));
+                return;
+            }
+            s.lastHeard = now;
+
+            int d = latest - s.next;
+            if (d >= RESTART_DISTANCE || d < -RESTART_DISTANCE) {
+                restart(s, latest + 1);
+                return;
+            }
+
+            advance(s, latest);
+
+            // the sender no longer has these; don't wait for them.
+            if (oldest - s.next > 0)
+                giveUp(s, (oldest - s.known > 0) ? s.known + 1 : oldest);
+        }
+
+        void handleNak(ByteBuffer packet) throws IOException
+        {
+            if (packet.remaining() < 12) {
+                stats.invalid();
+                return;
+            }
+            int addr = packet.getInt(4);
+            int port = packet.getShort(8) & 0xffff;
+            int nranges = packet.getShort(10) & 0xffff;
+            if (packet.remaining() < 12 + 6 * nranges) {
+                stats.invalid();
+                return;
+            }
+
+            InetSocketAddress local = localAddress;
+            if (port == local.getPort() &&
+                (local.getAddress().isAnyLocalAddress() || addr == toInt(local.getAddress())))
+                retransmit(packet, nranges, now);
+
+            // if another receiver already asked for our missing message,
+            // give the sender time to answer before asking again.
+            byte target[] = { (byte) (addr >>> 24), (byte) (addr >>> 16), (byte) (addr >>> 8), (byte) addr };
+            Source s = sources.get(new InetSocketAddress(InetAddress.getByAddress(target), port));
+            if (s == null || !s.missing())
+                return;
+            for (int i = 0; i < nranges; i++) {
+                int first = packet.getInt(12 + 6 * i);
+                int count = packet.getShort(16 + 6 * i) & 0xffff;
+                if (s.next - first >= 0 && s.next - first < count) {
+                    s.lastNak = now;
+                    return;
+                }
+            }
+        }
+
+        /** Send NAKs, give up on old gaps, and send this sender's
+         * heartbeat.
+         **/
+        void tick(long now) throws IOException
+        {
+            this.now = now;
+
+            for (Iterator<Source> it = sources.values().iterator(); it.hasNext(); ) {
+                Source s = it.next();
+
+                if (!s.missing()) {
+                    if (now - s.lastHeard > SOURCE_IDLE_NS)
+                        it.remove();
+                    continue;
+                }
+
+                if (s.gapSeq != s.next) {
+                    s.gapSeq = s.next;
+                    s.gapSince = now;
+                }
+
+                if (now - s.gapSince > nakTimeoutNanos) {
+                    // skip the missing messages, up to the next one held.
+                    int upTo = s.next;
+                    while (upTo - s.known <= 0 && s.held(upTo) == null)
+                        upTo++;
+                    giveUp(s, upTo);
+                    continue;
+                }
+
+                if (now - s.gapSince >= NAK_DELAY_NS && now - s.lastNak >= nakIntervalNanos)
+                    sendNak(s);
+            }
+
+            synchronized(ReliableMulticastProvider.this) {
+                if (published && now - lastHeartbeat >= heartbeatNanos)
+                    sendHeartbeat(now);
+            }
+        }
+
+        /** Ask a sender for the messages missing from it. **/
+        void sendNak(Source s) throws IOException
+        {
+            if (!(s.from instanceof InetSocketAddress))
+                return;
+            InetSocketAddress from = (InetSocketAddress) s.from;
+            if (!(from.getAddress() instanceof Inet4Address))
+                return;
+
+            s.lastNak = now;
+
+            synchronized(ReliableMulticastProvider.this) {
+                ByteBuffer header = controlHeader;
+                header.clear();
+                header.putInt(MAGIC_NAK);
+                header.putInt(toInt(from.getAddress()));
+                header.putShort((short) from.getPort());
+                header.putShort((short) 0); // number of ranges, filled in below
+
+                int nranges = 0;
+                int messages = 0;
+                int seq = s.next;
+                while (seq - s.known <= 0 && nranges < MAX_NAK_RANGES) {
+                    if (s.held(seq) != null) {
+                        seq++;
+                        continue;
+                    }
+                    int first = seq;
+                    while (seq - s.known <= 0 && s.held(seq) == null && seq - first < 0xffff)
+                        seq++;
+                    header.putInt(first);
+                    header.putShort((short) (seq - first));
+                    messages += seq - first;
+                    nranges++;
+                }
+                header.putShort(10, (short) nranges);
+                header.flip();
+
+                sendDatagram(header, empty);
+                rstats.nakSent(messages);
+            }
+        }
+    }
+
+    static int toInt(InetAddress addr)
+    {
+        byte b[] = addr.getAddress();
+        return ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+    }
+}
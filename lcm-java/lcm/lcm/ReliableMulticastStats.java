@@ -0,0 +1,124 @@
+package lcm.lcm;
+
+/**
+ * Counters for a reliable multicast (udpr) provider: the packet loss
+ * counters of {@link MulticastStats}, which count what the network lost
+ * before any retransmission, plus how the losses were repaired.
+ * <p>
+ * A retransmitted message arrives after later ones, so it counts as
+ * reordered rather than lost; messages that were never recovered are
+ * counted as unrecoverable.
+ *
+ * @see LCM#getMulticastStats
+ */
+public class ReliableMulticastStats extends MulticastStats
+{
+    // All guarded by "this".
+    long numNaksSent = 0;
+    long numNakedMessages = 0;
+    long numNaksReceived = 0;
+    long numRetransmitted = 0;
+    long numRecovered = 0;
+    long numUnrecoverable = 0;
+    long numInjectedDrops = 0;
+
+    ReliableMulticastStats(String name, FragmentReassembler reassembler)
+    {
+        super(name, reassembler);
+    }
+
+    synchronized void nakSent(int messages)
+    {
+        numNaksSent++;
+        numNakedMessages += messages;
+    }
+
+    synchronized void nakReceived()
+    {
+        numNaksReceived++;
+    }
+
+    synchronized void retransmitted()
+    {
+        numRetransmitted++;
+    }
+
+    synchronized void recovered()
+    {
+        numRecovered++;
+    }
+
+    synchronized void unrecoverable(int messages)
+    {
+        numUnrecoverable += messages;
+    }
+
+    synchronized void injectedDrop()
+    {
+        numInjectedDrops++;
+    }
+
+    /** Returns the number of NAKs this provider sent, asking senders to
+     * retransmit.
+     **/
+    public synchronized long getNakCount()
+    {
+        return numNaksSent;
+    }
+
+    /** Returns the number of messages asked for by this provider's NAKs,
+     * counting each request.
+     **/
+    public synchronized long getNakedMessageCount()
+    {
+        return numNakedMessages;
+    }
+
+    /** Returns the number of NAKs addressed to this provider as a sender. **/
+    public synchronized long getNaksReceivedCount()
+    {
+        return numNaksReceived;
+    }
+
+    /** Returns the number of messages this provider sent again. **/
+    public synchronized long getRetransmitCount()
+    {
+        return numRetransmitted;
+    }
+
+    /** Returns the number of messages that arrived after a gap had been
+     * noticed in their place, and so were delivered late rather than
+     * lost.
+     **/
+    public synchronized long getRecoveredCount()
+    {
+        return numRecovered;
+    }
+
+    /** Returns the number of messages given up on, because the sender no
+     * longer had them or did not resend them in time.
+     **/
+    public synchronized long getUnrecoverableCount()
+    {
+        return numUnrecoverable;
+    }
+
+    /** Returns the number of datagrams discarded on purpose, by the
+     * <code>drop_rate</code> option.
+     **/
+    public synchronized long getInjectedDropCount()
+    {
+        return numInjectedDrops;
+    }
+
+    public String toString()
+    {
+        return super.toString() + ", " +
+            getNakCount() + " NAKs sent, " +
+            getNaksReceivedCount() + " NAKs received, " +
+            getRetransmitCount() + " retransmitted, " +
+            getRecoveredCount() + " recovered, " +
+            getUnrecoverableCount() + " unrecoverable, " +
+            getInjectedDropCount() + " injected drops";
+    }
+}
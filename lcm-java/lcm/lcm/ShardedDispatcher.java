@@ -0,0 +1,170 @@
+package lcm.lcm;
+
+import java.util.*;
+
+/**
+ * Delivers received messages from a fixed pool of worker threads.  Each
+ * channel is assigned to one worker by hashing its name, so messages on a
+ * channel are delivered in the order they were received, while different
+ * channels are delivered in parallel.
+ *
+ * @see LCM#setDispatchThreads
+ */
+class ShardedDispatcher
+{
+    static final int QUEUE_CAPACITY = 1024;
+
+    // How long close() waits for the workers to deliver what is queued.
+    static final long CLOSE_TIMEOUT_MS = 1000;
+
+    static class Entry
+    {
+        String channel;
+        byte data[];
+        long utime;
+    }
+
+    final LCM lcm;
+    final Worker workers[];
+
+    ShardedDispatcher(LCM lcm, int nthreads)
+    {
+        this.lcm = lcm;
+
+        workers = new Worker[nthreads];
+        for (int i = 0; i < nthreads; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+    }
+
+    int getNumThreads()
+    {
+        return workers.length;
+    }
+
+    /** Copy the message and queue it to the channel's worker. If the
+     * worker is too far behind, block the calling provider thread.
+     *
+     * @return false if the dispatcher has been closed, in which case
+     * the message was not queued and the caller must deliver it.
+     **/
+    boolean dispatch(String channel, byte data[], int offset, int length, long utime)
+    {
+        Entry e = new Entry();
+        e.channel = channel;
+        e.utime = utime;
+        e.data = new byte[length];
+        System.arraycopy(data, offset, e.data, 0, length);
+
+        Worker w = workers[(channel.hashCode() & 0x7fffffff) % workers.length];
+        return w.put(e);
+    }
+
+    /** Stop accepting messages, and let the workers exit once they have
+     * delivered the messages already queued. Waits for that for at most
+     * CLOSE_TIMEOUT_MS, so that a subscriber that is stuck (possibly
+     * waiting for the thread calling close) does not hang the caller;
+     * the workers then finish in the background.
+     **/
+    void close()
+    {
+        for (Worker w : workers)
+            w.close();
+
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+        for (Worker w : workers) {
+            if (Thread.currentThread() == w)
+                continue;
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                break;
+            try {
+                w.join(remaining);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    class Worker extends Thread
+    {
+        // Guarded by "this".
+        ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+        boolean closed = false;
+
+        Worker(int idx)
+        {
+            super("LCM dispatch "+idx);
+            setDaemon(true);
+        }
+
+        /** Queue a message, waiting while the queue is full. Returns
+         * false, without queueing it, once the worker is closed.
+         **/
+        synchronized boolean put(Entry e)
+        {
+            while (queue.size() >= QUEUE_CAPACITY && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    // the provider is shutting down; drop the message.
+                    Thread.currentThread().interrupt();
+                    return true;
+                }
+            }
+
+            if (closed)
+                return false;
+
+            queue.addLast(e);
+            notifyAll();
+            return true;
+        }
+
+        /** Returns the next message, or null once the worker is closed
+         * and its queue is empty.
+         **/
+        synchronized Entry take() throws InterruptedException
+        {
+            while (queue.isEmpty() && !closed)
+                wait();
+
+            if (queue.isEmpty())
+                return null;
+
+            Entry e = queue.removeFirst();
+            // wake up any provider thread blocked on a full queue.
+            notifyAll();
+            return e;
+        }
+
+        synchronized void close()
+        {
+            closed = true;
+            notifyAll();
+        }
+
+        public void run()
+        {
+            while (true) {
+                Entry e;
+                try {
+                    e = take();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+
+                if (e == null)
+                    return;
+
+                try {
+                    lcm.dispatchMessage(e.channel, e.data, 0, e.data.length, e.utime);
+                } catch (RuntimeException ex) {
+                    System.err.println("LCM: "+getName()+": subscriber ex: "+ex);
+                }
+            }
+        }
+    }
+}
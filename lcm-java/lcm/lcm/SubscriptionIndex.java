@@ -0,0 +1,217 @@
+package lcm.lcm;
+
+import java.util.*;
+
+/**
+ * Finds the subscriptions whose regular expression matches a channel name.
+ * <p>
+ * Literal subscriptions are kept in a hash table, and prefix subscriptions
+ * (a literal followed by ".*") in a trie keyed by character, so that
+ * resolving a channel costs one hash lookup plus one walk down the trie.
+ * Only the subscriptions that are true regular expressions are tried one by
+ * one.  See {@link ChannelMatcher} for how subscriptions are classified.
+ * <p>
+ * Not thread-safe; callers provide their own locking.
+ */
+final class SubscriptionIndex<T>
+{
+    static final class Entry<T>
+    {
+        final ChannelMatcher matcher;
+        final T value;
+        final long seq; // insertion order
+
+        Entry(ChannelMatcher matcher, T value, long seq)
+        {
+            this.matcher = matcher;
+            this.value = value;
+            this.seq = seq;
+        }
+    }
+
+    static final class TrieNode<T>
+    {
+        HashMap<Character,TrieNode<T>> children;
+        ArrayList<Entry<T>> entries; // prefixes ending at this node
+    }
+
+    static final Comparator<Entry<?>> BY_SEQ = new Comparator<Entry<?>>() {
+        public int compare(Entry<?> a, Entry<?> b) {
+            return (a.seq < b.seq) ? -1 : ((a.seq == b.seq) ? 0 : 1);
+        }
+    };
+
+    HashMap<String,ArrayList<Entry<T>>> literals = new HashMap<String,ArrayList<Entry<T>>>();
+    TrieNode<T> prefixes = new TrieNode<T>();
+    ArrayList<Entry<T>> regexes = new ArrayList<Entry<T>>();
+
+    long nextSeq = 0;
+    int size = 0;
+
+    void add(ChannelMatcher matcher, T value)
+    {
+        Entry<T> e = new Entry<T>(matcher, value, nextSeq++);
+
+        switch (matcher.kind) {
+            case ChannelMatcher.LITERAL: {
+                ArrayList<Entry<T>> list = literals.get(matcher.literal);
+                if (list == null) {
+                    list = new ArrayList<Entry<T>>();
+                    literals.put(matcher.literal, list);
+                }
+                list.add(e);
+                break;
+            }
+            case ChannelMatcher.PREFIX: {
+                TrieNode<T> node = prefixes;
+                for (int i = 0; i < matcher.literal.length(); i++) {
+                    char c = matcher.literal.charAt(i);
+                    if (node.children == null)
+                        node.children = new HashMap<Character,TrieNode<T>>();
+                    TrieNode<T> child = node.children.get(c);
+                    if (child == null) {
+                        child = new TrieNode<T>();
+                        node.children.put(c, child);
+                    }
+                    node = child;
+                }
+                if (node.entries == null)
+                    node.entries = new ArrayList<Entry<T>>();
+                node.entries.add(e);
+                break;
+            }
+            default:
+                regexes.add(e);
+                break;
+        }
+
+        size++;
+    }
+
+    /** Remove the first entry with the given regex, whatever its value.
+     * Returns true if one was found.
+     **/
+    boolean remove(String regex)
+    {
+        return remove(regex, null);
+    }
+
+    /** Remove the first entry with the given regex and value (compared by
+     * identity, or any value if null). Returns true if one was found.
+     **/
+    boolean remove(String regex, T value)
+    {
+        ChannelMatcher m;
+        try {
+            m = ChannelMatcher.compile(regex);
+        } catch (java.util.regex.PatternSyntaxException ex) {
+            return false;
+        }
+
+        switch (m.kind) {
+            case ChannelMatcher.LITERAL: {
+                ArrayList<Entry<T>> list = literals.get(m.literal);
+                if (list == null || !removeFrom(list, regex, value))
+                    return false;
+                if (list.isEmpty())
+                    literals.remove(m.literal);
+                return true;
+            }
+            case ChannelMatcher.PREFIX: {
+                TrieNode<T> node = prefixes;
+                for (int i = 0; i < m.literal.length() && node != null; i++)
+                    node = (node.children == null) ? null : node.children.get(m.literal.charAt(i));
+                // empty trie nodes are left in place; prefixes are few.
+                return node != null && node.entries != null &&
+                    removeFrom(node.entries, regex, value);
+            }
+            default:
+                return removeFrom(regexes, regex, value);
+        }
+    }
+
+    boolean removeFrom(ArrayList<Entry<T>> list, String regex, T value)
+    {
+        for (Iterator<Entry<T>> it = list.iterator(); it.hasNext(); ) {
+            Entry<T> e = it.next();
+            if ((value == null || e.value == value) && e.matcher.regex.equals(regex)) {
+                it.remove();
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Append the values of all entries matching the channel to out, in
+     * the order in which they were added.
+     **/
+    void match(String channel, List<T> out)
+    {
+        ArrayList<Entry<T>> matches = new ArrayList<Entry<T>>();
+
+        ArrayList<Entry<T>> list = literals.get(channel);
+        if (list != null)
+            matches.addAll(list);
+
+        // a prefix matches if the rest of the channel has no line terminators.
+        int last = lastLineTerminator(channel);
+
+        TrieNode<T> node = prefixes;
+        for (int i = 0; node != null; i++) {
+            if (node.entries != null && last < i)
+                matches.addAll(node.entries);
+            if (i == channel.length() || node.children == null)
+                break;
+            node = node.children.get(channel.charAt(i));
+        }
+
+        for (Entry<T> e : regexes) {
+            if (e.matcher.matches(channel))
+                matches.add(e);
+        }
+
+        Collections.sort(matches, BY_SEQ);
+        for (Entry<T> e : matches)
+            out.add(e.value);
+    }
+
+    /** Returns true if any entry matches the channel. **/
+    boolean matchesAny(String channel)
+    {
+        if (literals.containsKey(channel))
+            return true;
+
+        int last = lastLineTerminator(channel);
+
+        TrieNode<T> node = prefixes;
+        for (int i = 0; node != null; i++) {
+            if (node.entries != null && !node.entries.isEmpty() && last < i)
+                return true;
+            if (i == channel.length() || node.children == null)
+                break;
+            node = node.children.get(channel.charAt(i));
+        }
+
+        for (Entry<T> e : regexes) {
+            if (e.matcher.matches(channel))
+                return true;
+        }
+
+        return false;
+    }
+
+    static int lastLineTerminator(String channel)
+    {
+        for (int i = channel.length() - 1; i >= 0; i--) {
+            if (ChannelMatcher.isLineTerminator(channel.charAt(i)))
+                return i;
+        }
+        return -1;
+    }
+
+    int size()
+    {
+        return size;
+    }
+}
@@ -10,6 +10,14 @@ import java.nio.*;
  * "hub" process (that must be started separately), which will relay
  * the messages to all other processes. TCPService is an
  * implementation of the hub process.
+ *
+ * With <code>compress=true</code>, messages of at least
+ * <code>compress_threshold</code> bytes (default 16384) are compressed
+ * with {@link LZ4Codec} when that makes them smaller, and sent as
+ * MESSAGE_TYPE_PUBLISH_COMPRESSED. Compression is only used with a hub
+ * of at least VERSION_COMPRESSED, which relays compressed messages
+ * unchanged to clients of the same version and decompresses them for
+ * older clients. Received messages are always decompressed.
  **/
 public class TCPProvider implements Provider
 {
@@ -24,10 +32,17 @@ public class TCPProvider implements Provider
 
     public static final int MAGIC_SERVER = 0x287617fa; // first word sent by server
     public static final int MAGIC_CLIENT = 0x287617fb; // first word sent by client
-    public static final int VERSION = 0x0100;    // what version do we implement?
+    public static final int VERSION = 0x0101;    // what version do we implement?
+    public static final int VERSION_COMPRESSED = 0x0101; // first version to understand MESSAGE_TYPE_PUBLISH_COMPRESSED
     public static final int MESSAGE_TYPE_PUBLISH = 1;
     public static final int MESSAGE_TYPE_SUBSCRIBE = 2;
     public static final int MESSAGE_TYPE_UNSUBSCRIBE = 3;
+    public static final int MESSAGE_TYPE_PUBLISH_COMPRESSED = 4;
+
+    static final int DEFAULT_COMPRESS_THRESHOLD = 16384;
+
+    LZ4Codec compressor; // null unless compress is set; guarded by "this"
+    int compressThreshold;
 
     HashSet<String> subscriptions = new HashSet<String>();
 
@@ -47,6 +62,10 @@ public class TCPProvider implements Provider
             System.exit(-1);
         }
 
+        if (up.get("compress", false))
+            compressor = new LZ4Codec();
+        compressThreshold = up.get("compress_threshold", DEFAULT_COMPRESS_THRESHOLD);
+
         tcp = new TCPThread();
         tcp.start();
     }
@@ -125,12 +144,24 @@ public class TCPProvider implements Provider
     {
         byte[] channel_bytes = stringToBytes(channel);
 
+        int type = MESSAGE_TYPE_PUBLISH;
+        if (compressor != null && length >= compressThreshold &&
+            tcp.serverVersion >= VERSION_COMPRESSED) {
+            int compressed = compressor.encode(data, offset, length);
+            if (compressed < length) {
+                data = compressor.buffer;
+                offset = 0;
+                length = compressed;
+                type = MESSAGE_TYPE_PUBLISH_COMPRESSED;
+            }
+        }
+
         int payload_size = channel_bytes.length + length;
 
         ByteArrayOutputStream bouts = new ByteArrayOutputStream(length + channel.length() + 32);
         DataOutputStream outs = new DataOutputStream(bouts);
 
-        outs.writeInt(MESSAGE_TYPE_PUBLISH);
+        outs.writeInt(type);
 
         outs.writeInt(channel_bytes.length);
         outs.write(channel_bytes, 0, channel_bytes.length);
@@ -147,8 +178,8 @@ public class TCPProvider implements Provider
         Socket sock;
         DataInputStream ins;
         OutputStream outs;
-        boolean exit = false;
-        int serverVersion;
+        volatile boolean exit = false;
+        volatile int serverVersion;
 
         TCPThread()
         {
@@ -205,36 +236,62 @@ public class TCPProvider implements Provider
         {
             while (!exit) {
 
-                synchronized (this) {
-                    //////////////////////////////////
-                    // reconnect
-                    try {
-                        sock = new Socket(inetAddr, inetPort);
-                        OutputStream _outs = sock.getOutputStream();
-                        DataOutputStream _douts = new DataOutputStream(_outs);
-                        _douts.writeInt(MAGIC_CLIENT);
-                        _douts.writeInt(VERSION);
-                        _douts.flush();
-                        outs = _outs;
-                        ins = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
-
-                        int magic = ins.readInt();
-                        if (magic != MAGIC_SERVER) {
-                            sock.close();
-                            continue;
-                        }
+                //////////////////////////////////
+                // reconnect
+                //
+                // Don't hold our lock while connecting: publishers would
+                // block in write() for as long as the hub is unreachable.
+                Socket _sock = null;
+                OutputStream _outs;
+                DataInputStream _ins;
+                int _serverVersion;
+                try {
+                    _sock = new Socket(inetAddr, inetPort);
+                    _outs = _sock.getOutputStream();
+                    DataOutputStream _douts = new DataOutputStream(_outs);
+                    _douts.writeInt(MAGIC_CLIENT);
+                    _douts.writeInt(VERSION);
+                    _douts.flush();
+                    _ins = new DataInputStream(new BufferedInputStream(_sock.getInputStream()));
+
+                    int magic = _ins.readInt();
+                    if (magic != MAGIC_SERVER) {
+                        _sock.close();
+                        continue;
+                    }
 
-                        serverVersion = ins.readInt();
+                    _serverVersion = _ins.readInt();
 
-                    } catch (IOException ex) {
-                        System.err.println("lcm.TCPProvider: Unable to connect to "+inetAddr+":"+inetPort);
-                        safeSleep(500);
+                } catch (IOException ex) {
+                    System.err.println("lcm.TCPProvider: Unable to connect to "+inetAddr+":"+inetPort);
+                    safeSleep(500);
 
-                        // try connecting again.
-                        continue;
+                    // try connecting again.
+                    continue;
+                }
+
+                ArrayList<String> subs;
+                synchronized (TCPProvider.this) {
+                    subs = new ArrayList<String>(subscriptions);
+                }
+
+                synchronized (this) {
+                    // close() may have run while we were connecting, and
+                    // would not know to close this socket.
+                    if (exit) {
+                        try {
+                            _sock.close();
+                        } catch (IOException ex) {
+                        }
+                        break;
                     }
 
-                    for (String sub : subscriptions) {
+                    sock = _sock;
+                    outs = _outs;
+                    ins = _ins;
+                    serverVersion = _serverVersion;
+
+                    for (String sub : subs) {
                         System.out.println("resending subscription "+sub);
                         sendSubscribe(sub);
                     }
@@ -251,24 +308,38 @@ public class TCPProvider implements Provider
                         int datalen = ins.readInt();
                         byte data[] = new byte[datalen];
                         ins.readFully(data);
+                        long utime = LCM.utime();
+
+                        if (type == MESSAGE_TYPE_PUBLISH_COMPRESSED) {
+                            byte compressed[] = data;
+                            data = new byte[LZ4Codec.decodedLength(compressed, 0, compressed.length)];
+                            LZ4Codec.decode(compressed, 0, compressed.length, data, data.length);
+                        }
 
-                        lcm.receiveMessage(new String(channel), data, 0, data.length);
+                        lcm.receiveMessage(new String(channel), data, 0, data.length, utime);
                     }
 
                 } catch (IOException ex) {
                     // exit read loop so we'll create a new connection.
                 }
+
+                synchronized (this) {
+                    outs = null;
+                }
             }
         }
 
         void close()
         {
-            try {
-                sock.close();
-            } catch (IOException ex) {
-            }
-
             exit = true;
+
+            synchronized (this) {
+                try {
+                    if (sock != null)
+                        sock.close();
+                } catch (IOException ex) {
+                }
+            }
         }
 
         OutputStream getOutputStream()
@@ -56,13 +56,42 @@ public class TCPService
 
 
     public void relay(byte channel[], byte data[])
+    {
+        relay(TCPProvider.MESSAGE_TYPE_PUBLISH, channel, data);
+    }
+
+    /** Send a message to every client subscribed to its channel. The
+     * type is MESSAGE_TYPE_PUBLISH or MESSAGE_TYPE_PUBLISH_COMPRESSED.
+     * Compressed messages are relayed unchanged to clients of at least
+     * VERSION_COMPRESSED, and decompressed (once) for older clients.
+     **/
+    public void relay(int type, byte channel[], byte data[])
     {
         // synchronously send to all clients.
         String chanstr = new String(channel);
+        byte decompressed[] = null;
         try {
             clients_lock.readLock().lock();
             for (ClientThread client : clients) {
-                client.send(chanstr, channel, data);
+                if (type != TCPProvider.MESSAGE_TYPE_PUBLISH_COMPRESSED ||
+                    client.version >= TCPProvider.VERSION_COMPRESSED) {
+                    client.send(type, chanstr, channel, data);
+                    continue;
+                }
+
+                if (!client.isSubscribed(chanstr))
+                    continue;
+
+                if (decompressed == null) {
+                    try {
+                        decompressed = new byte[LZ4Codec.decodedLength(data, 0, data.length)];
+                        LZ4Codec.decode(data, 0, data.length, decompressed, decompressed.length);
+                    } catch (IOException ex) {
+                        System.err.println("TCPService: dropping corrupt compressed message on "+chanstr+": "+ex.getMessage());
+                        return;
+                    }
+                }
+                client.send(TCPProvider.MESSAGE_TYPE_PUBLISH, chanstr, channel, decompressed);
             }
         } finally {
             clients_lock.readLock().unlock();
@@ -97,18 +126,10 @@ public class TCPService
         Socket sock;
         DataInputStream ins;
         DataOutputStream outs;
+        volatile int version; // the client's; zero until it has been read
 
-        class SubscriptionRecord
-        {
-            String  regex;
-            Pattern pat;
-            SubscriptionRecord(String regex) {
-                this.regex = regex;
-                this.pat = Pattern.compile(regex);
-            }
-        }
-
-        ArrayList<SubscriptionRecord> subscriptions = new ArrayList<SubscriptionRecord>();
+        // Literal and prefix subscriptions are matched without regexes.
+        SubscriptionIndex<String> subscriptions = new SubscriptionIndex<String>();
         ReadWriteLock subscriptions_lock = new ReentrantReadWriteLock();
 
         public ClientThread(Socket sock) throws IOException
@@ -127,9 +148,17 @@ public class TCPService
             ///////////////////////
             // read messages until something bad happens.
             try {
+                int magic = ins.readInt();
+                if (magic != TCPProvider.MAGIC_CLIENT) {
+                    System.err.println("TCPService: bad magic from "+sock.getRemoteSocketAddress());
+                    throw new IOException("bad magic");
+                }
+                version = ins.readInt();
+
                 while (true) {
                     int type = ins.readInt();
-                    if (type == TCPProvider.MESSAGE_TYPE_PUBLISH) {
+                    if (type == TCPProvider.MESSAGE_TYPE_PUBLISH ||
+                        type == TCPProvider.MESSAGE_TYPE_PUBLISH_COMPRESSED) {
                         int channellen = ins.readInt();
                         byte channel[] = new byte[channellen];
                         ins.readFully(channel);
@@ -138,16 +167,24 @@ public class TCPService
                         byte data[] = new byte[datalen];
                         ins.readFully(data);
 
-                        TCPService.this.relay(channel, data);
+                        TCPService.this.relay(type, channel, data);
 
                         bytesCount += channellen + datalen + 8;
                     } else if(type == TCPProvider.MESSAGE_TYPE_SUBSCRIBE) {
                         int channellen = ins.readInt();
                         byte channel[] = new byte[channellen];
                         ins.readFully(channel);
+                        String re = new String(channel);
+                        ChannelMatcher matcher;
+                        try {
+                            matcher = ChannelMatcher.compile(re);
+                        } catch (PatternSyntaxException ex) {
+                            System.err.println("TCPService: ignoring invalid subscription regex \""+re+"\": "+ex.getDescription());
+                            continue;
+                        }
                         try {
                             subscriptions_lock.writeLock().lock();
-                            subscriptions.add(new SubscriptionRecord(new String(channel)));
+                            subscriptions.add(matcher, re);
                         } finally {
                             subscriptions_lock.writeLock().unlock();
                         }
@@ -158,12 +195,7 @@ public class TCPService
                         String re = new String(channel);
                         try {
                             subscriptions_lock.writeLock().lock();
-                            for(int i=0, n=subscriptions.size(); i<n; i++) {
-                                if(subscriptions.get(i).regex.equals(re)) {
-                                    subscriptions.remove(i);
-                                    break;
-                                }
-                            }
+                            subscriptions.remove(re);
                         } finally {
                             subscriptions_lock.writeLock().unlock();
                         }
@@ -191,21 +223,28 @@ public class TCPService
             sock.close();
         }
 
-        public void send(String chanstr, byte channel[], byte data[])
+        boolean isSubscribed(String chanstr)
         {
             try {
                 subscriptions_lock.readLock().lock();
-                for(SubscriptionRecord sr : subscriptions) {
-                    if(sr.pat.matcher(chanstr).matches()) {
-                        synchronized(outs) {
-                            outs.writeInt(TCPProvider.MESSAGE_TYPE_PUBLISH);
-                            outs.writeInt(channel.length);
-                            outs.write(channel);
-                            outs.writeInt(data.length);
-                            outs.write(data);
-                            outs.flush();
-                            return;
-                        }
+                return subscriptions.matchesAny(chanstr);
+            } finally {
+                subscriptions_lock.readLock().unlock();
+            }
+        }
+
+        public void send(int type, String chanstr, byte channel[], byte data[])
+        {
+            try {
+                subscriptions_lock.readLock().lock();
+                if(subscriptions.matchesAny(chanstr)) {
+                    synchronized(outs) {
+                        outs.writeInt(type);
+                        outs.writeInt(channel.length);
+                        outs.write(channel);
+                        outs.writeInt(data.length);
+                        outs.write(data);
+                        outs.flush();
                     }
                 }
             } catch (IOException ex) {
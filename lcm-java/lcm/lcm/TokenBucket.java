@@ -0,0 +1,54 @@
+package lcm.lcm;
+
+/**
+ * Limits the rate at which bytes are sent.
+ * <p>
+ * The bucket fills at <code>rate</code> bytes per second, up to
+ * <code>burst</code> bytes.  Sending takes bytes out of the bucket; a
+ * sender that must respect the rate first waits for {@link #delay} until
+ * the bucket holds enough.  Senders that must not wait may overdraw the
+ * bucket, which then delays later senders instead.
+ * <p>
+ * Not thread-safe; callers provide their own locking.
+ */
+final class TokenBucket
+{
+    final double rate;  // bytes per second
+    final double burst; // bytes
+
+    double tokens;
+    long lastRefill;
+
+    TokenBucket(double rate, double burst)
+    {
+        this.rate = rate;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    void refill()
+    {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+    }
+
+    /** Returns how many nanoseconds to wait before <code>n</code> bytes
+     * may be sent, or 0 if they may be sent now.
+     **/
+    long delay(int n)
+    {
+        refill();
+        if (tokens >= n)
+            return 0;
+        return Math.max(1, (long) ((n - tokens) * 1e9 / rate));
+    }
+
+    /** Take <code>n</code> bytes without waiting. **/
+    void take(int n)
+    {
+        refill();
+        tokens -= n;
+    }
+}
@@ -3,38 +3,144 @@ package lcm.lcm;
 import java.net.*;
 import java.io.*;
 import java.util.*;
-import java.util.regex.*;
 import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.locks.*;
 
 /** LCM provider for the udpm: URL. All messages are broadcast over a
  * pre-arranged UDP multicast address. Subscription operations are a
- * no-op, since all messages are always broadcast.
+ * no-op, since all messages are always broadcast; instead, each datagram's
+ * channel name is checked against LCM's subscriptions as soon as it is
+ * received. Messages that no subscription wants are dropped before their
+ * payload is copied, and the later fragments of an unwanted large message
+ * are skipped rather than reassembled.
  *
  * This mechanism is very simple, low-latency, and efficient due to
  * not having to transmit messages more than once when there are
  * multiple subscribers. Since it uses UDP, it is lossy.
+ *
+ * Datagrams are sent and received through NIO channels, using direct
+ * buffers that are reused for every packet. The multicast group is
+ * joined on the interface named by the <code>iface</code> URL option
+ * (an interface name or address), or else on the interface that the
+ * kernel routes the group through.
+ *
+ * With the <code>rx_threads=N</code> URL option, N threads receive from
+ * the group's channel. Each thread handles the datagrams it receives,
+ * including delivering them to subscribers, so decoding and dispatch run
+ * in parallel. Subscribers may then be invoked concurrently, and messages
+ * may be delivered in a different order than they were sent.
+ *
+ * Fragmented messages are reassembled by a {@link FragmentReassembler}.
+ * The <code>frag_timeout_ms</code> option sets how long a partial message
+ * is kept without receiving a fragment (default 1000), and
+ * <code>frag_max_bytes</code> how much memory a sender's partial messages
+ * may use (default 64 MB). Larger messages are not received.
+ *
+ * Packet loss is counted from the senders' sequence numbers; see
+ * {@link #getStats}.
+ *
+ * The <code>rcvbuf</code> (or, as in the C implementation,
+ * <code>recv_buf_size</code>) and <code>sndbuf</code> options request
+ * kernel socket buffer sizes, in bytes. The sizes actually granted are
+ * reported, with a warning if the kernel limited them.
+ *
+ * With <code>max_rate=R</code>, the fragments of large messages are paced
+ * so that the provider sends at most R bytes per second on average, in
+ * bursts of at most <code>max_burst</code> bytes (default 256 KB). Short
+ * messages are never delayed, but count against the rate. While a large
+ * message is being paced, other publishes on this provider wait for it;
+ * use the <code>publish_queue</code> option to keep them from blocking.
+ * The provider's lock is released while waiting to send a fragment.
+ *
+ * With <code>busy_poll=true</code>, the reader threads poll a non-blocking
+ * channel instead of blocking in the kernel, which avoids the wakeup
+ * latency of a blocked thread at the cost of CPU time. When no datagram
+ * arrives for <code>spin_ns</code> nanoseconds (default 100000), a reader
+ * parks for <code>park_ns</code> between polls (default 50000) until the
+ * next one does. A negative <code>spin_ns</code> spins without ever
+ * parking, keeping a core busy per reader thread; this suits dedicated
+ * machines that need deterministic latency.
+ *
+ * With <code>compress=true</code>, messages of at least
+ * <code>compress_threshold</code> bytes (default 16384) are compressed
+ * with {@link LZ4Codec} when that makes them smaller, and sent with their
+ * own magic numbers so that the fewer fragments they need are all that
+ * crosses the network. Receivers always decompress such messages,
+ * whether or not they enable the option themselves; receivers built
+ * without this support drop them as invalid.
  **/
 public class UDPMulticastProvider implements Provider
 {
-    MulticastSocket sock;
+    DatagramChannel recvChannel;
+    DatagramChannel sendChannel;
 
     static final String DEFAULT_NETWORK = "239.255.76.67:7667";
     static final int    DEFAULT_TTL     = 0;
 
     static final int    MAGIC_SHORT = 0x4c433032; // ascii of "LC02"
     static final int    MAGIC_LONG  = 0x4c433033; // ascii of "LC03"
+    static final int    MAGIC_SHORT_COMPRESSED = 0x4c433034; // ascii of "LC04"
+    static final int    MAGIC_LONG_COMPRESSED  = 0x4c433035; // ascii of "LC05"
+    static final int    MAGIC_NAK       = 0x4c434e4b; // ascii of "LCNK", sent by udpr:
+    static final int    MAGIC_HEARTBEAT = 0x4c434842; // ascii of "LCHB", sent by udpr:
     static final int    FRAGMENTATION_THRESHOLD = 64000;
+    static final int    FRAGMENT_HEADER_SIZE = 20; // before the channel, in fragment 0
+    static final int    MAX_CHANNEL_NAME_LENGTH = 63; // as in the C implementation
+    static final int    MAX_DATAGRAM_SIZE = 65536;
+    static final int    PEEK_SIZE = 256; // copied before the channel is checked
 
-    ReaderThread reader;
+    // Below this, large messages are likely to overflow the receive buffer.
+    static final int    SMALL_RCVBUF = 262145;
+    static final String MULTICAST_SETUP_URL =
+        "https://lcm-proj.github.io/lcm/content/multicast-setup.html";
+
+    ReaderThread readers[];
+    int         rxThreads;
 
     int		msgSeqNumber=0;
 
-    HashMap<SocketAddress, FragmentBuffer> fragBufs = new HashMap<SocketAddress, FragmentBuffer>();
+    FragmentReassembler reassembler;
+    MulticastStats stats;
 
     LCM lcm;
 
     InetAddress inetAddr;
     int         inetPort;
+    InetSocketAddress groupAddr;
+    NetworkInterface iface;
+    int         ttl;
+    int         sndbuf;     // requested, or 0 for the kernel's default
+    int         rcvbufSize; // granted by the kernel
+    int         sndbufSize;
+    volatile boolean warnedAboutSmallRcvbuf = false;
+
+    static final int    DEFAULT_MAX_BURST = 256 * 1024;
+
+    static final int    DEFAULT_SPIN_NS = 100000;
+    static final int    DEFAULT_PARK_NS = 50000;
+
+    static final int    DEFAULT_COMPRESS_THRESHOLD = 16384;
+
+    LZ4Codec    compressor; // null unless compress is set; guarded by "this"
+    int         compressThreshold;
+
+    boolean     busyPoll;
+    long        spinNanos;  // negative to never park
+    long        parkNanos;
+
+    TokenBucket pacer; // null unless max_rate is set; guarded by "this"
+
+    // True while a publish is in progress, which may release the lock
+    // while it is paced. Guarded by "this".
+    boolean     sending = false;
+
+    // Each datagram is sent with a gathering write of a header, built in a
+    // reused direct buffer, and a slice of the caller's array. Guarded by
+    // "this".
+    ByteBuffer sendHeader = ByteBuffer.allocateDirect(FRAGMENT_HEADER_SIZE + MAX_CHANNEL_NAME_LENGTH + 1);
+    ByteBuffer sendData;  // wraps the array most recently published
+    ByteBuffer sendParts[] = new ByteBuffer[2];
 
     static
     {
@@ -43,23 +149,39 @@ public class UDPMulticastProvider implements Provider
     }
 
     public UDPMulticastProvider(LCM lcm, URLParser up) throws IOException
+    {
+        this(lcm, up, DEFAULT_NETWORK);
+    }
+
+    UDPMulticastProvider(LCM lcm, URLParser up, String defaultNetwork) throws IOException
     {
         this.lcm = lcm;
 
-        String addrport[] = up.get("network", DEFAULT_NETWORK).split(":");
+        String addrport[] = up.get("network", defaultNetwork).split(":");
 
         inetAddr = InetAddress.getByName(addrport[0]);
         inetPort = Integer.valueOf(addrport[1]);
+        groupAddr = new InetSocketAddress(inetAddr, inetPort);
+
+        iface = findInterface(up.get("iface", null), groupAddr);
+
+        rxThreads = Math.max(1, up.get("rx_threads", 1));
 
-        sock = new MulticastSocket(inetPort);
+        if (up.get("compress", false))
+            compressor = new LZ4Codec();
+        compressThreshold = up.get("compress_threshold", DEFAULT_COMPRESS_THRESHOLD);
 
-        sock.setReuseAddress(true);
-        // TODO setLoopbackMode was deprecated in Java 1.14 but not added until Java 1.9. Replace it
-        // with the line below when the minimum Java version is 1.9 or higher.
-        // sock.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, false); // true *disables* loopback
-        sock.setLoopbackMode(false); // true *disables* loopback
+        busyPoll = up.get("busy_poll", false);
+        spinNanos = up.get("spin_ns", DEFAULT_SPIN_NS);
+        parkNanos = Math.max(1, up.get("park_ns", DEFAULT_PARK_NS));
 
-        int ttl = up.get("ttl", DEFAULT_TTL);
+        reassembler = new FragmentReassembler(
+            up.get("frag_timeout_ms", (int) FragmentReassembler.DEFAULT_TIMEOUT_MS),
+            up.get("frag_max_bytes", (int) FragmentReassembler.DEFAULT_MAX_BYTES));
+        stats = new MulticastStats(up.get("protocol") + "://" + inetAddr.getHostAddress() + ":" + inetPort,
+                                   reassembler);
+
+        ttl = up.get("ttl", DEFAULT_TTL);
         if (ttl == 0)
             System.err.println("LCM: TTL set to zero, traffic will not leave localhost.");
         else if (ttl > 1)
@@ -67,64 +189,269 @@ public class UDPMulticastProvider implements Provider
         else
             System.err.println("LCM: TTL set to 1.");
 
-        sock.setTimeToLive(up.get("ttl", DEFAULT_TTL));
+        double maxRate = up.get("max_rate", 0.0);
+        if (maxRate > 0) {
+            // a burst smaller than one datagram could never be sent.
+            int burst = Math.max(up.get("max_burst", DEFAULT_MAX_BURST), MAX_DATAGRAM_SIZE);
+            pacer = new TokenBucket(maxRate, burst);
+        }
+
+        int rcvbuf = up.get("rcvbuf", up.get("recv_buf_size", 0));
+        sndbuf = up.get("sndbuf", 0);
 
-        SocketAddress socketAddr = new InetSocketAddress(inetAddr, inetPort);
-        sock.joinGroup(socketAddr, null);
+        recvChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            recvChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (rcvbuf > 0)
+                recvChannel.setOption(StandardSocketOptions.SO_RCVBUF, rcvbuf);
+            recvChannel.bind(new InetSocketAddress(inetPort));
+            recvChannel.join(inetAddr, iface);
+            if (busyPoll)
+                recvChannel.configureBlocking(false);
+
+            sendChannel = openSendChannel();
+        } catch (IOException ex) {
+            recvChannel.close();
+            throw ex;
+        }
+
+        rcvbufSize = recvChannel.getOption(StandardSocketOptions.SO_RCVBUF);
+        sndbufSize = sendChannel.getOption(StandardSocketOptions.SO_SNDBUF);
+        checkBufferSize("receive", rcvbuf, rcvbufSize, "net.core.rmem_max");
+        checkBufferSize("send", sndbuf, sndbufSize, "net.core.wmem_max");
+    }
+
+    /** Report the buffer size the kernel granted, if one was requested,
+     * and warn if it is smaller.
+     **/
+    static void checkBufferSize(String what, int requested, int granted, String sysctl)
+    {
+        if (requested <= 0)
+            return;
+
+        if (granted < requested) {
+            System.err.println("LCM: Warning: UDP "+what+" buffer size ("+granted+") is smaller "+
+                               "than requested ("+requested+").");
+            System.err.println("     On Linux, raise "+sysctl+". For more info:");
+            System.err.println("     "+MULTICAST_SETUP_URL);
+        } else {
+            System.err.println("LCM: UDP "+what+" buffer size is "+granted+" bytes.");
+        }
+    }
+
+    DatagramChannel openSendChannel() throws IOException
+    {
+        DatagramChannel ch = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            ch.setOption(StandardSocketOptions.IP_MULTICAST_IF, iface);
+            ch.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+            ch.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            if (sndbuf > 0)
+                ch.setOption(StandardSocketOptions.SO_SNDBUF, sndbuf);
+            // a connected socket lets the kernel reuse its route lookup.
+            ch.connect(groupAddr);
+        } catch (IOException ex) {
+            ch.close();
+            throw ex;
+        }
+        return ch;
+    }
+
+    /** Pick the interface to join the group on: the one named by the
+     * user, or else the one that the kernel would send to the group
+     * through, or else the first one that supports multicast.
+     **/
+    static NetworkInterface findInterface(String name, InetSocketAddress group) throws IOException
+    {
+        NetworkInterface ni;
+
+        if (name != null) {
+            ni = NetworkInterface.getByName(name);
+            if (ni == null)
+                ni = NetworkInterface.getByInetAddress(InetAddress.getByName(name));
+            if (ni == null)
+                throw new IOException("LCM: No such network interface: "+name);
+            return ni;
+        }
+
+        // connecting a UDP socket sends nothing, but selects the source
+        // address (and so the interface) from the routing table.
+        DatagramSocket probe = null;
+        try {
+            probe = new DatagramSocket();
+            probe.connect(group);
+            InetAddress local = probe.getLocalAddress();
+            if (local != null && !local.isAnyLocalAddress()) {
+                ni = NetworkInterface.getByInetAddress(local);
+                if (ni != null && ni.isUp())
+                    return ni;
+            }
+        } catch (IOException ex) {
+            // no route to the group.
+        } finally {
+            if (probe != null)
+                probe.close();
+        }
+
+        NetworkInterface loopback = null;
+        for (Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces(); e != null && e.hasMoreElements(); ) {
+            ni = e.nextElement();
+            if (!ni.isUp())
+                continue;
+            if (ni.isLoopback()) {
+                loopback = ni;
+                continue;
+            }
+            if (!ni.supportsMulticast())
+                continue;
+            for (Enumeration<InetAddress> a = ni.getInetAddresses(); a.hasMoreElements(); ) {
+                if (a.nextElement() instanceof Inet4Address)
+                    return ni;
+            }
+        }
+
+        if (loopback == null)
+            throw new IOException("LCM: No network interface for multicast; set the iface option");
+        return loopback;
     }
 
     public synchronized void publish(String channel, byte data[], int offset, int length)
     {
+        // wait for a message that is being paced to go out first.
+        boolean interrupted = false;
+        while (sending) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        sending = true;
         try {
             publishEx(channel, data, offset, length);
         } catch (Exception ex) {
             System.err.println("ex: "+ex);
+        } finally {
+            sending = false;
+            notifyAll();
         }
     }
 
     public synchronized void subscribe(String channel)
     {
-        if (null == reader) {
-            reader = new ReaderThread();
-            reader.start();
+        if (null == readers) {
+            readers = new ReaderThread[rxThreads];
+            for (int i = 0; i < rxThreads; i++) {
+                readers[i] = new ReaderThread();
+                readers[i].start();
+            }
         }
     }
 
     public void unsubscribe(String channel) { }
 
+    /** Returns the size of the kernel's receive buffer, in bytes. **/
+    public int getReceiveBufferSize()
+    {
+        return rcvbufSize;
+    }
+
+    /** Returns the size of the kernel's send buffer, in bytes. **/
+    public int getSendBufferSize()
+    {
+        return sndbufSize;
+    }
+
+    /** Returns the packet loss counters for this provider. **/
+    public MulticastStats getStats()
+    {
+        return stats;
+    }
+
     public synchronized void close()
     {
-        if (null != reader) {
-            reader.interrupt();
-            try {
-                reader.join();
-            } catch (InterruptedException ex) {
+        if (null != readers) {
+            // interrupting a thread blocked on the channel closes it,
+            // which stops the other readers too. Polling readers see
+            // the interrupt themselves.
+            for (ReaderThread reader : readers)
+                reader.interrupt();
+            for (ReaderThread reader : readers) {
+                try {
+                    reader.join();
+                } catch (InterruptedException ex) {
+                }
             }
         }
-        reader = null;
-        sock.close();
-        sock = null;
-        fragBufs = null;
+        readers = null;
+        try {
+            recvChannel.close();
+            sendChannel.close();
+        } catch (IOException ex) {
+        }
+        recvChannel = null;
+        sendChannel = null;
+        reassembler = null;
+    }
+
+    /** Send a message with the next sequence number. Caller must hold
+     * the lock, and have set <code>sending</code>.
+     **/
+    void publishEx(String channel, byte data[], int offset, int length) throws IOException
+    {
+        sendMessage(compressor, this.msgSeqNumber, channel, data, offset, length);
+        this.msgSeqNumber++;
     }
 
-    void publishEx(String channel, byte data[], int offset, int length) throws Exception
+    /** Send a message with the given sequence number, compressing it with
+     * <code>codec</code> (if not null). Caller must hold the lock, which
+     * is released while waiting for the pacer; the codec must not be used
+     * by anyone else meanwhile.
+     **/
+    void sendMessage(LZ4Codec codec, int msgSeqNumber, String channel, byte data[], int offset, int length)
+        throws IOException
     {
-        byte[] channel_bytes = channel.getBytes("US-ASCII");
+        if (channel.length() > MAX_CHANNEL_NAME_LENGTH)
+            throw new IOException("LCM: channel name too long: "+channel);
+
+        int magic_short = MAGIC_SHORT;
+        int magic_long = MAGIC_LONG;
+
+        if (codec != null && length >= compressThreshold) {
+            int compressed = codec.encode(data, offset, length);
+            if (compressed < length) {
+                data = codec.buffer;
+                offset = 0;
+                length = compressed;
+                magic_short = MAGIC_SHORT_COMPRESSED;
+                magic_long = MAGIC_LONG_COMPRESSED;
+            }
+        }
 
-        int payload_size = channel_bytes.length + length;
+        int payload_size = channel.length() + length;
+        ByteBuffer header = sendHeader;
 
         if (payload_size <= FRAGMENTATION_THRESHOLD) {
 
-            LCMDataOutputStream outs = new LCMDataOutputStream(length + channel.length() + 32);
+            wrapSendData(data);
 
-            outs.writeInt(MAGIC_SHORT);
-            outs.writeInt(this.msgSeqNumber);
+            header.clear();
+            header.putInt(magic_short);
+            header.putInt(msgSeqNumber);
+            putStringZ(header, channel);
+            header.flip();
 
-            outs.writeStringZ(channel);
+            sendData.clear();
+            sendData.position(offset);
+            sendData.limit(offset + length);
 
-            outs.write(data, offset, length);
+            if (pacer != null)
+                pacer.take(header.remaining() + length);
 
-            sock.send(new DatagramPacket(outs.getBuffer(), 0, outs.size(), inetAddr, inetPort));
+            sendDatagram(header, sendData);
 
         } else {
             int nfragments = payload_size / FRAGMENTATION_THRESHOLD;
@@ -135,74 +462,98 @@ public class UDPMulticastProvider implements Provider
                 return;
             }
 
-            // first fragment is special.  insert channel before data
-            ByteArrayOutputStream bouts = new ByteArrayOutputStream(10 + FRAGMENTATION_THRESHOLD);
-            DataOutputStream outs = new DataOutputStream(bouts);
-
             int fragment_offset = 0;
-            int frag_no = 0;
-
-            outs.writeInt(MAGIC_LONG);
-            outs.writeInt(this.msgSeqNumber);
-            outs.writeInt(length);
-            outs.writeInt(fragment_offset);
-            outs.writeShort(frag_no);
-            outs.writeShort(nfragments);
-            outs.write(channel_bytes, 0, channel_bytes.length);
-            outs.writeByte(0);
-            int firstfrag_datasize = FRAGMENTATION_THRESHOLD -
-                (channel_bytes.length + 1);
-
-            outs.write(data, offset, firstfrag_datasize);
-
-            byte[] b = bouts.toByteArray();
-            sock.send(new DatagramPacket(b, 0, b.length, inetAddr, inetPort));
-
-            fragment_offset += firstfrag_datasize;
-
-            for (frag_no=1; frag_no < nfragments; frag_no++) {
-                bouts = new ByteArrayOutputStream(10 + FRAGMENTATION_THRESHOLD);
-                outs = new DataOutputStream(bouts);
-
-                outs.writeInt(MAGIC_LONG);
-                outs.writeInt(this.msgSeqNumber);
-                outs.writeInt(length);
-                outs.writeInt(fragment_offset);
-                outs.writeShort(frag_no);
-                outs.writeShort(nfragments);
-                int fraglen = java.lang.Math.min(FRAGMENTATION_THRESHOLD, length - fragment_offset);
-                outs.write(data, offset+fragment_offset, fraglen);
-
-                b = bouts.toByteArray();
-                sock.send(new DatagramPacket(b, 0, b.length, inetAddr, inetPort));
+
+            for (int frag_no = 0; frag_no < nfragments; frag_no++) {
+                // first fragment is special.  insert channel before data
+                int fraglen;
+                if (frag_no == 0)
+                    fraglen = FRAGMENTATION_THRESHOLD - (channel.length() + 1);
+                else
+                    fraglen = java.lang.Math.min(FRAGMENTATION_THRESHOLD, length - fragment_offset);
+
+                // others may send while we wait, so the header and data
+                // wrapper are only set up afterwards.
+                if (pacer != null) {
+                    int headerSize = FRAGMENT_HEADER_SIZE + (frag_no == 0 ? channel.length() + 1 : 0);
+                    pace(headerSize + fraglen);
+                }
+
+                wrapSendData(data);
+
+                header.clear();
+                header.putInt(magic_long);
+                header.putInt(msgSeqNumber);
+                header.putInt(length);
+                header.putInt(fragment_offset);
+                header.putShort((short) frag_no);
+                header.putShort((short) nfragments);
+
+                if (frag_no == 0)
+                    putStringZ(header, channel);
+                header.flip();
+
+                sendData.clear();
+                sendData.position(offset + fragment_offset);
+                sendData.limit(offset + fragment_offset + fraglen);
+
+                sendDatagram(header, sendData);
 
                 fragment_offset += fraglen;
             }
         }
+    }
 
-        this.msgSeqNumber++;
+    /** Point sendData at <code>data</code>. Publishing from the same array
+     * again (as LCM's per-thread encode buffers do) reuses the wrapper.
+     **/
+    void wrapSendData(byte data[])
+    {
+        if (sendData == null || sendData.array() != data)
+            sendData = ByteBuffer.wrap(data);
     }
 
-    class FragmentBuffer
+    /** Wait until the pacer lets <code>n</code> bytes be sent, then take
+     * them. Waits on the lock, releasing it meanwhile. Returns early
+     * (taking them anyway) if the thread is interrupted.
+     **/
+    void pace(int n) throws IOException
     {
-        SocketAddress from = null;
-        String channel = null;
-        int msgSeqNumber = 0;
-        int data_size = 0;
-        int fragments_remaining = 0;
-        byte[] data = null;
-        boolean frag_received[];
-
-        FragmentBuffer(SocketAddress from, String channel, int msgSeqNumber, int data_size,
-                       int fragments_remaining)
-        {
-            this.from = from;
-            this.channel = channel;
-            this.msgSeqNumber = msgSeqNumber;
-            this.data_size = data_size;
-            this.fragments_remaining = fragments_remaining;
-            this.data = new byte[data_size];
-            this.frag_received = new boolean[fragments_remaining];
+        long delay;
+        while ((delay = pacer.delay(n)) > 0) {
+            try {
+                wait(delay / 1000000, (int) (delay % 1000000));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (sendChannel == null)
+                throw new ClosedChannelException();
+        }
+        pacer.take(n);
+    }
+
+    static void putStringZ(ByteBuffer buf, String s)
+    {
+        for (int i = 0; i < s.length(); i++)
+            buf.put((byte) s.charAt(i));
+        buf.put((byte) 0);
+    }
+
+    /** Send one datagram, made of a header and a payload, to the
+     * group. Caller must hold the lock.
+     **/
+    void sendDatagram(ByteBuffer header, ByteBuffer payload) throws IOException
+    {
+        sendParts[0] = header;
+        sendParts[1] = payload;
+        try {
+            sendChannel.write(sendParts);
+        } catch (ClosedByInterruptException ex) {
+            // the publishing thread was interrupted, which also closed
+            // the channel. Open another one for later messages.
+            sendChannel = openSendChannel();
+            throw ex;
         }
     }
 
@@ -213,14 +564,34 @@ public class UDPMulticastProvider implements Provider
             setDaemon(true);
         }
 
+        // Reused for every packet, so that receiving does not allocate.
+        ByteBuffer packet = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        byte packetData[] = new byte[MAX_DATAGRAM_SIZE];
+        LCMDataInputStream ins = new LCMDataInputStream(new byte[0]);
+        ChannelNameCache channelNames = new ChannelNameCache();
+
+        byte decoded[] = new byte[0]; // decompressed messages; grows as needed
+
+        // The packet is copied out of the direct buffer lazily: the
+        // headers and channel name first, the rest once it is wanted.
+        int packetLength;
+        int filled;
+
+        long utime; // when the packet being handled was received
+
         public void run()
         {
-            DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
-
             while (!isInterrupted()) {
                 try {
-                    sock.receive(packet);
-                    handlePacket(packet);
+                    packet.clear();
+                    SocketAddress from = busyPoll ? poll() : recvChannel.receive(packet);
+                    if (from == null)
+                        return; // interrupted while polling
+                    utime = LCM.utime();
+                    packet.flip();
+                    handlePacket(packet, from);
+                } catch (ClosedChannelException ex) {
+                    return;
                 } catch (IOException ex) {
                     System.err.println("ex: "+ex);
                     continue;
@@ -228,103 +599,195 @@ public class UDPMulticastProvider implements Provider
             }
         }
 
-        @Override
-        public void interrupt() {
-            super.interrupt();
-            sock.close();
+        /** Receive a datagram from the non-blocking channel, spinning and
+         * then parking until one arrives. Returns null if interrupted.
+         **/
+        SocketAddress poll() throws IOException
+        {
+            long spinStart = System.nanoTime();
+            while (!isInterrupted()) {
+                SocketAddress from = recvChannel.receive(packet);
+                if (from != null)
+                    return from;
+                if (spinNanos < 0 || System.nanoTime() - spinStart < spinNanos)
+                    continue;
+                LockSupport.parkNanos(parkNanos);
+            }
+            return null;
         }
 
-        void handleShortMessage(DatagramPacket packet, LCMDataInputStream ins) throws IOException
+        /** Copy the rest of the packet into packetData. **/
+        void fill()
         {
-            int msgSeqNumber = ins.readInt();
-            String channel = ins.readStringZ();
+            if (filled < packetLength) {
+                packet.get(packetData, filled, packetLength - filled);
+                filled = packetLength;
+            }
+        }
 
-            lcm.receiveMessage(channel, ins.getBuffer(), ins.getBufferOffset(), ins.available());
+        /** Return the index of the zero that ends the channel name starting
+         * at <code>start</code>, or -1 if there is none.
+         **/
+        int channelEnd(int start)
+        {
+            for (int i = start; i < packetLength; i++) {
+                if (i == filled)
+                    fill();
+                if (packetData[i] == 0)
+                    return i;
+            }
+            return -1;
         }
 
-        void handleFragment (DatagramPacket packet, LCMDataInputStream ins) throws IOException
+        void handleShortMessage(SocketAddress from, LCMDataInputStream ins, boolean compressed)
+            throws IOException
         {
             int msgSeqNumber = ins.readInt();
-            int msg_size = ins.readInt() & 0xffffffff;
-            int fragment_offset = ins.readInt() & 0xffffffff;
-            int fragment_id = ins.readShort() & 0xffff;
-            int fragments_in_msg = ins.readShort() & 0xffff;
+            stats.sequence(from, msgSeqNumber, false);
 
-            // read entire packet payload
-            byte payload[] = new byte[ins.available()];
-            ins.readFully(payload);
+            int start = ins.getBufferOffset();
+            int end = channelEnd(start);
+            if (end < 0)
+                throw new EOFException("LCM: unterminated channel name");
 
-            if (ins.available() > 0) {
-                System.err.println("Unread data! "+ins.available());
+            int idx = channelNames.index(packetData, start, end - start);
+            if (!channelNames.wanted(idx, lcm)) {
+                filtered(from, msgSeqNumber);
+                return;
             }
 
-            int data_start = 0;
-            int frag_size = payload.length;
+            fill();
+            if (compressed)
+                receiveCompressed(from, msgSeqNumber, channelNames.values[idx],
+                                  packetData, end + 1, packetLength - end - 1);
+            else
+                deliver(from, msgSeqNumber, utime, channelNames.values[idx],
+                        packetData, end + 1, packetLength - end - 1);
+        }
 
-            SocketAddress from = packet.getSocketAddress();
-            FragmentBuffer fbuf = fragBufs.get(from);
+        /** Hand a complete message, received at <code>utime</code>,
+         * to LCM. A fragmented message was received when its last
+         * fragment arrived.
+         **/
+        void deliver(SocketAddress from, int msgSeqNumber, long utime, String channel,
+                     byte data[], int offset, int length)
+        {
+            lcm.receiveMessage(channel, data, offset, length, utime);
+        }
 
-            if (fbuf != null && ((fbuf.msgSeqNumber != msgSeqNumber) ||
-                                 (fbuf.data_size != msg_size))) {
-                fragBufs.remove(fbuf.from);
-                fbuf = null;
+        /** Called instead of {@link #deliver} for a message that no
+         * subscription wants.
+         **/
+        void filtered(SocketAddress from, int msgSeqNumber)
+        {
+            stats.filtered();
+        }
+
+        /** Decompress a message and deliver it. **/
+        void receiveCompressed(SocketAddress from, int msgSeqNumber, String channel,
+                               byte data[], int offset, int length) throws IOException
+        {
+            int size;
+            try {
+                size = LZ4Codec.decodedLength(data, offset, length);
+                if (decoded.length < size)
+                    decoded = new byte[size];
+                LZ4Codec.decode(data, offset, length, decoded, size);
+            } catch (IOException ex) {
+                stats.invalid();
+                throw ex;
             }
 
-            if (null == fbuf && 0 == fragment_id) {
+            deliver(from, msgSeqNumber, utime, channel, decoded, 0, size);
+        }
 
-                // extract channel name
-                int channel_len = 0;
-                for (; channel_len < payload.length; channel_len++) {
-                    if (0 == payload[channel_len]) {
-                        break;
-                    }
-                }
-                data_start = channel_len + 1;
-                frag_size -= channel_len + 1;
-                String channel = new String(payload, 0, channel_len, "US-ASCII");
+        void handleFragment (SocketAddress from, LCMDataInputStream ins, boolean compressed)
+            throws IOException
+        {
+            int msgSeqNumber = ins.readInt();
+            int msg_size = ins.readInt() & 0xffffffff;
+            int fragment_offset = ins.readInt() & 0xffffffff;
+            int fragment_id = ins.readShort() & 0xffff;
+            int fragments_in_msg = ins.readShort() & 0xffff;
+            stats.sequence(from, msgSeqNumber, true);
+
+            if (!warnedAboutSmallRcvbuf && rcvbufSize < SMALL_RCVBUF && msg_size > rcvbufSize) {
+                warnedAboutSmallRcvbuf = true;
+                System.err.println("LCM: Warning: large messages are being received, but the UDP receive");
+                System.err.println("     buffer is only "+rcvbufSize+" bytes, so they are likely to be");
+                System.err.println("     lost. Set the rcvbuf option. For more info:");
+                System.err.println("     "+MULTICAST_SETUP_URL);
+            }
 
-                fbuf = new FragmentBuffer (from, channel, msgSeqNumber, msg_size, fragments_in_msg);
+            int data_start = ins.getBufferOffset();
+            int frag_size = ins.available();
 
-                fragBufs.put (fbuf.from, fbuf);
-            }
+            String channel = null;
+            if (0 == fragment_id) {
 
-            if (null == fbuf) {
-                // TODO
-                return;
-            }
+                // extract channel name
+                int end = channelEnd(data_start);
+                if (end < 0) {
+                    // corrupt; the message can never be completed.
+                    stats.invalid();
+                    reassembler.skip(from, msgSeqNumber, msg_size, fragments_in_msg);
+                    return;
+                }
 
-            if (fragment_offset + frag_size > fbuf.data_size) {
-                System.err.println ("LC: dropping invalid fragment");
-                fragBufs.remove (fbuf.from);
+                int idx = channelNames.index(packetData, data_start, end - data_start);
+                if (!channelNames.wanted(idx, lcm)) {
+                    reassembler.skip(from, msgSeqNumber, msg_size, fragments_in_msg);
+                    filtered(from, msgSeqNumber);
+                    return;
+                }
+                channel = channelNames.values[idx];
+                frag_size -= end + 1 - data_start;
+                data_start = end + 1;
+            } else if (reassembler.isSkipped(from, msgSeqNumber)) {
                 return;
             }
 
-            if (!fbuf.frag_received[fragment_id]) {
-                fbuf.frag_received[fragment_id] = true;
+            fill();
+            FragmentReassembler.Partial msg = reassembler.add(from, msgSeqNumber, msg_size,
+                fragments_in_msg, fragment_id, fragment_offset, channel,
+                packetData, data_start, frag_size);
 
-                System.arraycopy(payload, data_start, fbuf.data, fragment_offset, frag_size);
-
-                fbuf.fragments_remaining --;
-            }
-
-            if (0 == fbuf.fragments_remaining) {
-                lcm.receiveMessage(fbuf.channel, fbuf.data, 0, fbuf.data_size);
-                fragBufs.remove (fbuf.from);
+            if (msg != null) {
+                try {
+                    if (compressed)
+                        receiveCompressed(from, msgSeqNumber, msg.channel, msg.data, 0, msg.data_size);
+                    else
+                        deliver(from, msgSeqNumber, utime, msg.channel, msg.data, 0, msg.data_size);
+                } finally {
+                    reassembler.release(msg);
+                }
             }
         }
 
-        void handlePacket(DatagramPacket packet) throws IOException
+        void handlePacket(ByteBuffer packet, SocketAddress from) throws IOException
         {
-            LCMDataInputStream ins = new LCMDataInputStream(packet.getData(),
-                                                            packet.getOffset(),
-                                                            packet.getLength());
+            // the one copy out of the direct buffer, into an array that
+            // subscribers can read. Only the headers are copied for now.
+            packetLength = packet.remaining();
+            filled = Math.min(packetLength, PEEK_SIZE);
+            packet.get(packetData, 0, filled);
+            ins.wrap(packetData, 0, packetLength);
 
             int magic = ins.readInt();
             if (magic == MAGIC_SHORT) {
-                handleShortMessage(packet, ins);
+                handleShortMessage(from, ins, false);
             } else if (magic == MAGIC_LONG) {
-                handleFragment(packet, ins);
+                handleFragment(from, ins, false);
+            } else if (magic == MAGIC_SHORT_COMPRESSED) {
+                handleShortMessage(from, ins, true);
+            } else if (magic == MAGIC_LONG_COMPRESSED) {
+                handleFragment(from, ins, true);
+            } else if (magic == MAGIC_NAK || magic == MAGIC_HEARTBEAT) {
+                // control traffic of udpr: senders and receivers on the
+                // same group, which carries no messages.
+                return;
             } else {
+                stats.invalid();
                 System.err.println("bad magic: " + Integer.toHexString(magic));
                 return;
             }
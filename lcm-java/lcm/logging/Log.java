@@ -141,16 +141,22 @@ public class Log
      */
     public synchronized void write(Event e) throws IOException
     {
-        byte[] channelb = e.channel.getBytes();
+        write(e.eventNumber, e.utime, e.channel, e.data, 0, e.data.length);
+    }
+
+    synchronized void write(long eventNumber, long utime, String channel,
+                            byte data[], int offset, int length) throws IOException
+    {
+        byte[] channelb = channel.getBytes();
 
         raf.writeInt(LOG_MAGIC);
-        raf.writeLong(e.eventNumber);
-        raf.writeLong(e.utime);
+        raf.writeLong(eventNumber);
+        raf.writeLong(utime);
         raf.writeInt(channelb.length);
-        raf.writeInt(e.data.length);
+        raf.writeInt(length);
 
         raf.write(channelb, 0, channelb.length);
-        raf.write(e.data, 0, e.data.length);
+        raf.write(data, offset, length);
     }
 
     /** A convenience method for write. It internally manages the
@@ -170,6 +176,16 @@ public class Log
         numMessagesWritten++;
     }
 
+    /** A convenience method for write, for a message that is already
+     * encoded. Like {@link #write(long, String, LCMEncodable)}, it
+     * manages the eventNumber field. **/
+    public synchronized void write(long utime, String channel, byte data[], int offset, int length)
+        throws IOException
+    {
+        write(numMessagesWritten, utime, channel, data, offset, length);
+        numMessagesWritten++;
+    }
+
     /**
      * Closes the log file and releases and system resources used by it.
      */
@@ -0,0 +1,50 @@
+package lcm.logging;
+
+import java.io.*;
+
+import lcm.lcm.*;
+
+/**
+ * Records received messages to a log file.  Subscribe it to the channels
+ * to be logged:
+ * <pre>
+ *   LogWriter writer = new LogWriter(new Log("out.lcmlog", "rw"));
+ *   lcm.subscribe(".*", writer);
+ * </pre>
+ * Each event is stamped with the time its message was received by the
+ * provider, not the time it was written, so queueing ahead of the writer
+ * does not skew the log.
+ */
+public class LogWriter implements LCMTimestampedSubscriber
+{
+    Log log;
+    boolean errorWarned = false;
+
+    public LogWriter(Log log)
+    {
+        this.log = log;
+    }
+
+    /** Returns the log being written. **/
+    public Log getLog()
+    {
+        return log;
+    }
+
+    public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+    {
+        messageReceived(lcm, channel, LCM.utime(), ins);
+    }
+
+    public void messageReceived(LCM lcm, String channel, long utime, LCMDataInputStream ins)
+    {
+        try {
+            log.write(utime, channel, ins.getBuffer(), ins.getBufferOffset(), ins.available());
+        } catch (IOException ex) {
+            if (!errorWarned) {
+                System.err.println("LogWriter: unable to write "+log.getPath()+": "+ex);
+                errorWarned = true;
+            }
+        }
+    }
+}
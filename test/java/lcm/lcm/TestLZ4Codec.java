@@ -0,0 +1,108 @@
+package lcm.lcm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Round trips through LZ4Codec, and checks that truncated or corrupt
+ * input is rejected with an IOException. Lives in lcm.lcm because the
+ * codec is package-private.
+ */
+public class TestLZ4Codec {
+    final Random random = new Random(42);
+
+    static byte[] decode(byte compressed[], int length) throws IOException {
+        byte data[] = new byte[LZ4Codec.decodedLength(compressed, 0, length)];
+        LZ4Codec.decode(compressed, 0, length, data, data.length);
+        return data;
+    }
+
+    static byte[] encode(LZ4Codec codec, byte data[]) {
+        int length = codec.encode(data, 0, data.length);
+        return Arrays.copyOf(codec.buffer, length);
+    }
+
+    byte[] text(int length) {
+        String words[] = { "lcm ", "channel ", "message ", "hub ", "udpm ", "\n" };
+        byte data[] = new byte[length];
+        for (int i = 0; i < length; ) {
+            byte word[] = words[random.nextInt(words.length)].getBytes();
+            for (int j = 0; j < word.length && i < length; j++)
+                data[i++] = word[j];
+        }
+        return data;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        LZ4Codec codec = new LZ4Codec();
+        int lengths[] = { 0, 1, 5, 12, 13, 100, 4096, 65536, 300000 };
+        for (int length : lengths) {
+            byte data[] = text(length);
+            byte compressed[] = encode(codec, data);
+            if (length >= 4096)
+                assertTrue(compressed.length < length / 2);
+            assertArrayEquals(data, decode(compressed, compressed.length));
+        }
+
+        // runs, which decode as matches overlapping their own output.
+        byte zeros[] = new byte[100000];
+        byte compressed[] = encode(codec, zeros);
+        assertTrue(compressed.length < 1000);
+        assertArrayEquals(zeros, decode(compressed, compressed.length));
+    }
+
+    @Test
+    public void testIncompressible() throws Exception {
+        LZ4Codec codec = new LZ4Codec();
+        byte data[] = new byte[65536];
+        random.nextBytes(data);
+        byte compressed[] = encode(codec, data);
+        assertTrue(compressed.length <= 4 + LZ4Codec.maxCompressedLength(data.length));
+        assertArrayEquals(data, decode(compressed, compressed.length));
+    }
+
+    /** Decoding must fail with an IOException, not an unchecked exception. */
+    static void assertRejected(byte compressed[], int length) {
+        try {
+            decode(compressed, length);
+        } catch (IOException ex) {
+            return;
+        }
+        throw new AssertionError("decoded " + length + " corrupt bytes");
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        byte compressed[] = encode(new LZ4Codec(), text(2000));
+        for (int length = 0; length < compressed.length; length++)
+            assertRejected(compressed, length);
+    }
+
+    @Test
+    public void testCorrupt() throws Exception {
+        byte original[] = encode(new LZ4Codec(), text(2000));
+        for (int i = 0; i < 5000; i++) {
+            byte compressed[] = original.clone();
+            for (int flips = 1 + random.nextInt(3); flips > 0; flips--)
+                compressed[random.nextInt(compressed.length)] ^= 1 << random.nextInt(8);
+            try {
+                decode(compressed, compressed.length);
+            } catch (IOException ex) {
+                // a flipped literal can still decode, just to other bytes.
+            }
+        }
+
+        // sizes that are negative or too large to allocate.
+        byte huge[] = { (byte) 0x80, 0, 0, 0, 0 };
+        assertRejected(huge, huge.length);
+        huge[0] = 0x7f;
+        assertRejected(huge, huge.length);
+    }
+}
@@ -0,0 +1,115 @@
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import lcm.lcm.LCM;
+import lcm.lcm.LCMDataInputStream;
+import lcm.lcm.LCMSubscriber;
+
+/**
+ * Checks that, once warmed up, receiving short messages over memq:// and
+ * udpm:// does not allocate on the receiving thread.
+ */
+public class TestAllocationFreeReceive {
+    static final String CHANNEL = "ALLOCATION_TEST";
+    static final int WARMUP = 20000;
+    static final int MEASURED = 50000;
+
+    static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(sunBean.isThreadAllocatedMemorySupported());
+        sunBean.setThreadAllocatedMemoryEnabled(true);
+        return sunBean;
+    }
+
+    /** Records the receiving thread's allocations between the end of the
+     * warmup and the last measured message.
+     */
+    static class Probe implements LCMSubscriber {
+        final com.sun.management.ThreadMXBean bean;
+        final CountDownLatch warmedUp = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile int received = 0;
+        long checksum = 0;
+        long startBytes;
+        long allocatedBytes;
+
+        Probe(com.sun.management.ThreadMXBean bean) {
+            this.bean = bean;
+        }
+
+        public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+            try {
+                checksum += ins.readLong();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+
+            int n = received + 1;
+            if (n == WARMUP) {
+                startBytes = bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                warmedUp.countDown();
+            } else if (n == WARMUP + MEASURED) {
+                allocatedBytes = bean.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes;
+                done.countDown();
+            }
+            received = n;
+        }
+    }
+
+    /** Publish until the probe has seen enough messages, staying only a
+     * little ahead of the receiver so that no queue has to grow.
+     */
+    static void publishUntilDone(LCM lcm, Probe probe, long timeoutMs) throws Exception {
+        byte data[] = new byte[256];
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        int sent = 0;
+
+        while (probe.done.getCount() > 0 && System.currentTimeMillis() < deadline) {
+            lcm.publish(CHANNEL, data, 0, data.length);
+            sent++;
+
+            long waitUntil = System.nanoTime() + 10000000L;
+            while (sent - probe.received > 16 && System.nanoTime() < waitUntil)
+                Thread.yield();
+        }
+    }
+
+    void checkReceive(String url) throws Exception {
+        Probe probe = new Probe(threadBean());
+        LCM lcm = new LCM(url);
+        try {
+            lcm.subscribe(CHANNEL, probe);
+            publishUntilDone(lcm, probe, 60000);
+
+            // multicast may not be routable on this machine.
+            assumeTrue(probe.warmedUp.await(0, TimeUnit.SECONDS));
+            assertTrue("timed out after " + probe.received + " messages",
+                       probe.done.await(0, TimeUnit.SECONDS));
+        } finally {
+            lcm.close();
+        }
+
+        assertTrue(url + " allocated " + probe.allocatedBytes + " bytes for " +
+                   MEASURED + " messages",
+                   probe.allocatedBytes < MEASURED);
+    }
+
+    @Test
+    public void testMemqReceiveDoesNotAllocate() throws Exception {
+        checkReceive("memq://");
+    }
+
+    @Test
+    public void testUdpmShortMessageReceiveDoesNotAllocate() throws Exception {
+        checkReceive("udpm://239.255.76.67:7669?ttl=0");
+    }
+}
@@ -0,0 +1,246 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import lcm.lcm.DeliveryLane;
+import lcm.lcm.DeliveryPolicy;
+import lcm.lcm.LCM;
+import lcm.lcm.LCMDataInputStream;
+import lcm.lcm.LCMSubscriber;
+
+/**
+ * Checks the overflow policies of delivery lanes, lanes running on an
+ * executor, and that closing a lane releases a provider blocked on it.
+ * Messages are handed to LCM.receiveMessage directly, standing in for
+ * the provider's thread.
+ */
+public class TestDeliveryLane {
+    LCM lcm;
+
+    @Before
+    public void setUp() throws Exception {
+        lcm = new LCM("memq://");
+    }
+
+    @After
+    public void tearDown() {
+        lcm.close();
+    }
+
+    /** Records what it receives, blocking on the first message until
+     * released, so that later messages pile up in the lane.
+     */
+    static class Gate implements LCMSubscriber {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done;
+
+        Gate(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+            int value = ins.getBuffer()[ins.getBufferOffset()] & 0xff;
+            received.add(channel + value);
+            if (value == 0) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+            done.countDown();
+        }
+    }
+
+    void send(String channel, int value) {
+        lcm.receiveMessage(channel, new byte[] { (byte) value }, 0, 1);
+    }
+
+    static List<String> list(String... items) {
+        List<String> result = new ArrayList<String>();
+        for (String item : items)
+            result.add(item);
+        return result;
+    }
+
+    /** Holds the subscriber in message 0, then sends
+     * <code>channels</code>, one message each, numbered from 1.
+     */
+    DeliveryLane overflow(Gate gate, DeliveryPolicy.Overflow overflow, String channels)
+        throws Exception {
+        DeliveryLane lane = lcm.subscribe(".*", gate, DeliveryPolicy.lane(2, overflow));
+        send("A", 0);
+        assertTrue(gate.blocked.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < channels.length(); i++)
+            send(channels.substring(i, i + 1), i + 1);
+        return lane;
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        Gate gate = new Gate(3);
+        DeliveryLane lane = overflow(gate, DeliveryPolicy.Overflow.DROP_OLDEST, "AAAAA");
+        assertEquals(3, lane.getDropCount());
+        assertEquals(2, lane.getQueueDepth());
+        assertEquals(2, lane.getMaxQueueDepth());
+
+        gate.release.countDown();
+        assertTrue(gate.done.await(5, TimeUnit.SECONDS));
+        assertEquals(list("A0", "A4", "A5"), gate.received);
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        Gate gate = new Gate(3);
+        DeliveryLane lane = overflow(gate, DeliveryPolicy.Overflow.DROP_NEWEST, "AAAAA");
+        assertEquals(3, lane.getDropCount());
+        assertEquals(2, lane.getQueueDepth());
+
+        gate.release.countDown();
+        assertTrue(gate.done.await(5, TimeUnit.SECONDS));
+        assertEquals(list("A0", "A1", "A2"), gate.received);
+    }
+
+    @Test
+    public void testConflate() throws Exception {
+        // A3 replaces A1 in place; C4 then finds the lane full of other
+        // channels and discards the oldest, A3.
+        Gate gate = new Gate(3);
+        DeliveryLane lane = overflow(gate, DeliveryPolicy.Overflow.CONFLATE, "ABAC");
+        assertEquals(2, lane.getDropCount());
+        assertEquals(2, lane.getQueueDepth());
+
+        gate.release.countDown();
+        assertTrue(gate.done.await(5, TimeUnit.SECONDS));
+        assertEquals(list("A0", "B2", "C4"), gate.received);
+    }
+
+    /** Sends message <code>value</code> on a thread of its own. */
+    Thread sendInBackground(final String channel, final int value) {
+        Thread provider = new Thread() {
+            public void run() {
+                send(channel, value);
+            }
+        };
+        provider.start();
+        return provider;
+    }
+
+    @Test
+    public void testBlockWaitsForRoom() throws Exception {
+        Gate gate = new Gate(4);
+        DeliveryLane lane = overflow(gate, DeliveryPolicy.Overflow.BLOCK, "AA");
+
+        Thread provider = sendInBackground("A", 3);
+        provider.join(200);
+        assertTrue("provider should wait for room", provider.isAlive());
+        assertEquals(2, lane.getQueueDepth());
+
+        gate.release.countDown();
+        provider.join(5000);
+        assertFalse(provider.isAlive());
+        assertTrue(gate.done.await(5, TimeUnit.SECONDS));
+        assertEquals(list("A0", "A1", "A2", "A3"), gate.received);
+        assertEquals(0, lane.getDropCount());
+    }
+
+    /** Unsubscribing closes the lane, which releases a provider blocked
+     * on its full queue even though the subscriber never catches up.
+     */
+    @Test
+    public void testCloseReleasesBlockedProvider() throws Exception {
+        Gate gate = new Gate(1);
+        DeliveryLane lane = overflow(gate, DeliveryPolicy.Overflow.BLOCK, "AA");
+
+        Thread provider = sendInBackground("A", 3);
+        provider.join(200);
+        assertTrue("provider should wait for room", provider.isAlive());
+
+        lcm.unsubscribe(".*", gate);
+        provider.join(5000);
+        assertFalse("provider still blocked", provider.isAlive());
+        assertEquals(0, lane.getQueueDepth());
+
+        // nothing more is queued or delivered.
+        send("A", 4);
+        assertEquals(0, lane.getQueueDepth());
+        assertEquals(list("A0"), gate.received);
+    }
+
+    /** A lane on a thread pool delivers one message at a time, in order,
+     * on the pool's threads.
+     */
+    @Test
+    public void testExecutorDeliversInOrder() throws Exception {
+        final int messages = 2000;
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        final CountDownLatch done = new CountDownLatch(messages);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            DeliveryLane lane = lcm.subscribe("EXEC", new LCMSubscriber() {
+                public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                    if (inside.incrementAndGet() != 1)
+                        overlaps.incrementAndGet();
+                    received.add(ins.getBuffer()[ins.getBufferOffset()] & 0xff);
+                    threads.add(Thread.currentThread());
+                    Thread.yield();
+                    inside.decrementAndGet();
+                    done.countDown();
+                }
+            }, DeliveryPolicy.executor(executor, 16, DeliveryPolicy.Overflow.BLOCK));
+
+            List<Integer> expected = new ArrayList<Integer>();
+            for (int i = 0; i < messages; i++) {
+                send("EXEC", i);
+                expected.add(i & 0xff);
+            }
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(0, overlaps.get());
+            assertEquals(expected, received);
+            assertFalse(threads.contains(Thread.currentThread()));
+            assertEquals(0, lane.getDropCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /** Messages that a shut down executor rejects are counted as drops. */
+    @Test
+    public void testShutdownExecutorDrops() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+
+        Gate gate = new Gate(1);
+        DeliveryLane lane = lcm.subscribe("EXEC", gate,
+            DeliveryPolicy.executor(executor, 16, DeliveryPolicy.Overflow.BLOCK));
+        for (int i = 0; i < 3; i++)
+            send("EXEC", i + 1);
+
+        assertEquals(3, lane.getDropCount());
+        assertEquals(0, lane.getQueueDepth());
+        assertEquals(0, lane.getDeliveredCount());
+        assertTrue(gate.received.isEmpty());
+    }
+}
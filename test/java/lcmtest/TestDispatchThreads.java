@@ -0,0 +1,173 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import lcm.lcm.LCM;
+import lcm.lcm.LCMDataInputStream;
+import lcm.lcm.LCMSubscriber;
+
+/**
+ * Checks delivery from dispatch threads (LCM.setDispatchThreads): order
+ * within each channel, and shutdown while a subscriber is busy.
+ */
+public class TestDispatchThreads {
+    static byte[] encode(int value) {
+        return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16),
+                            (byte) (value >>> 8), (byte) value };
+    }
+
+    static int decode(LCMDataInputStream ins) {
+        try {
+            return ins.readInt();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Test
+    public void testPerChannelOrder() throws Exception {
+        final int channels = 16;
+        final int messages = 500;
+        final Map<String, Integer> next = new HashMap<String, Integer>();
+        final Set<String> threads = new HashSet<String>();
+        final CountDownLatch done = new CountDownLatch(channels * messages);
+        final String error[] = new String[1];
+
+        LCM lcm = new LCM("memq://");
+        try {
+            lcm.setDispatchThreads(4);
+            assertEquals(4, lcm.getDispatchThreads());
+
+            lcm.subscribe("ORDER_.*", new LCMSubscriber() {
+                public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                    int value = decode(ins);
+                    synchronized (next) {
+                        Integer expected = next.get(channel);
+                        if (expected == null)
+                            expected = 0;
+                        if (value != expected && error[0] == null)
+                            error[0] = channel + ": expected " + expected + ", got " + value;
+                        next.put(channel, value + 1);
+                        threads.add(Thread.currentThread().getName());
+                    }
+                    done.countDown();
+                }
+            });
+
+            for (int i = 0; i < messages; i++) {
+                for (int c = 0; c < channels; c++) {
+                    byte data[] = encode(i);
+                    lcm.publish("ORDER_" + c, data, 0, data.length);
+                }
+            }
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertNull(error[0]);
+            synchronized (next) {
+                assertTrue(threads.toString(), threads.size() > 1);
+            }
+        } finally {
+            lcm.close();
+        }
+    }
+
+    /** Publishes messages to a subscriber that blocks on the first one
+     * until released, then calls a synchronized LCM method.
+     */
+    static class Blocker implements LCMSubscriber {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done;
+
+        Blocker(int messages) {
+            done = new CountDownLatch(messages);
+        }
+
+        public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+            if (decode(ins) == 0) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                }
+                try {
+                    lcm.getMulticastStats();
+                } catch (IllegalStateException ex) {
+                    // already closed
+                }
+            }
+            done.countDown();
+        }
+
+        LCM start(int messages) throws Exception {
+            LCM lcm = new LCM("memq://");
+            lcm.setDispatchThreads(2);
+            lcm.subscribe("BLOCKED", this);
+            for (int i = 0; i < messages; i++) {
+                byte data[] = encode(i);
+                lcm.publish("BLOCKED", data, 0, data.length);
+            }
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+            Thread.sleep(200); // let memq hand the rest to the dispatcher
+            return lcm;
+        }
+    }
+
+    static Thread closeInBackground(final LCM lcm) {
+        Thread closer = new Thread() {
+            public void run() {
+                lcm.close();
+            }
+        };
+        closer.start();
+        return closer;
+    }
+
+    /** close() returns even though a subscriber is stuck, and the
+     * messages that were already queued are still delivered once it
+     * moves on.
+     */
+    @Test
+    public void testCloseWithBlockedSubscriber() throws Exception {
+        final int messages = 100;
+        Blocker blocker = new Blocker(messages);
+        LCM lcm = blocker.start(messages);
+
+        Thread closer = closeInBackground(lcm);
+        closer.join(5000);
+        assertFalse("close() hung", closer.isAlive());
+
+        blocker.release.countDown();
+        assertTrue("delivered " + (messages - blocker.done.getCount()) + " of " + messages,
+                   blocker.done.await(5, TimeUnit.SECONDS));
+    }
+
+    /** A subscriber that calls into LCM while close() is waiting for the
+     * dispatch threads does not deadlock.
+     */
+    @Test
+    public void testSubscriberCallsLcmDuringClose() throws Exception {
+        final int messages = 100;
+        Blocker blocker = new Blocker(messages);
+        LCM lcm = blocker.start(messages);
+
+        Thread closer = closeInBackground(lcm);
+        Thread.sleep(100);
+        blocker.release.countDown();
+
+        closer.join(5000);
+        assertFalse("close() hung", closer.isAlive());
+        assertTrue(blocker.done.await(5, TimeUnit.SECONDS));
+    }
+}
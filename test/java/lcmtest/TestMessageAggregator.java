@@ -0,0 +1,231 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import lcm.lcm.LCMDataInputStream;
+import lcm.lcm.MessageAggregator;
+
+/**
+ * Checks which messages a MessageAggregator keeps, and in what order it
+ * hands them out.
+ */
+public class TestMessageAggregator {
+    static byte[] encode(int value, int size) {
+        byte data[] = new byte[size];
+        data[0] = (byte) (value >>> 24);
+        data[1] = (byte) (value >>> 16);
+        data[2] = (byte) (value >>> 8);
+        data[3] = (byte) value;
+        return data;
+    }
+
+    static void receive(MessageAggregator agg, String channel, int value) {
+        receive(agg, channel, value, 4);
+    }
+
+    static void receive(MessageAggregator agg, String channel, int value, int size) {
+        agg.messageReceived(null, channel, new LCMDataInputStream(encode(value, size)));
+    }
+
+    static String describe(MessageAggregator.Message m) {
+        if (m == null)
+            return null;
+        int value = ((m.data[0] & 0xff) << 24) | ((m.data[1] & 0xff) << 16) |
+            ((m.data[2] & 0xff) << 8) | (m.data[3] & 0xff);
+        return m.channel + value;
+    }
+
+    static List<String> drain(MessageAggregator agg) {
+        List<MessageAggregator.Message> messages = new ArrayList<MessageAggregator.Message>();
+        agg.drainTo(messages, Integer.MAX_VALUE);
+        List<String> result = new ArrayList<String>();
+        for (MessageAggregator.Message m : messages)
+            result.add(describe(m));
+        return result;
+    }
+
+    static List<String> list(String... items) {
+        List<String> result = new ArrayList<String>();
+        for (String item : items)
+            result.add(item);
+        return result;
+    }
+
+    @Test
+    public void testMaxMessagesDropsOldest() {
+        MessageAggregator agg = new MessageAggregator();
+        agg.setMaxMessages(3);
+        for (int i = 0; i < 5; i++)
+            receive(agg, "A", i);
+
+        assertEquals(3, agg.numMessagesAvailable());
+        assertEquals(list("A2", "A3", "A4"), drain(agg));
+        assertNull(agg.getNextMessage(0));
+    }
+
+    @Test
+    public void testMaxBufferSizeDropsOldest() {
+        MessageAggregator agg = new MessageAggregator();
+        agg.setMaxBufferSize(250);
+        for (int i = 0; i < 5; i++)
+            receive(agg, "A", i, 100);
+
+        assertEquals(list("A3", "A4"), drain(agg));
+    }
+
+    @Test
+    public void testChannelLimits() {
+        MessageAggregator agg = new MessageAggregator();
+        agg.setMaxMessages("A", 2);
+        agg.setMaxBufferSize("B", 150);
+        assertEquals(2, agg.getMaxMessages("A"));
+        assertEquals(Integer.MAX_VALUE, agg.getMaxMessages("B"));
+        assertEquals(150, agg.getMaxBufferSize("B"));
+
+        for (int i = 0; i < 3; i++) {
+            receive(agg, "A", i);
+            receive(agg, "B", i, 100);
+            receive(agg, "C", i);
+        }
+
+        assertEquals(6, agg.numMessagesAvailable());
+        assertEquals(list("C0", "A1", "C1", "A2", "B2", "C2"), drain(agg));
+    }
+
+    /** Messages discarded by a channel limit are skipped in order, both
+     * while the ring grows and when it is compacted.
+     */
+    @Test
+    public void testRemovalAndCompactionKeepOrder() {
+        MessageAggregator agg = new MessageAggregator();
+        agg.setMaxMessages("A", 1);
+
+        List<String> expected = new ArrayList<String>();
+        int n = 500;
+        for (int i = 0; i < n; i++) {
+            receive(agg, "A", i);
+            receive(agg, "B", i);
+            if (i == n - 1)
+                expected.add("A" + i);
+            expected.add("B" + i);
+        }
+
+        assertEquals(n + 1, agg.numMessagesAvailable());
+        List<String> got = new ArrayList<String>();
+        for (int i = 0; i < 10; i++)
+            got.add(describe(agg.getNextMessage(0)));
+
+        // more removals after the head has moved on.
+        for (int i = n; i < n + 100; i++) {
+            receive(agg, "A", i);
+            receive(agg, "B", i);
+            expected.add("B" + i);
+        }
+        expected.remove("A" + (n - 1));
+        expected.add(expected.size() - 1, "A" + (n + 99));
+
+        got.addAll(drain(agg));
+        assertEquals(expected, got);
+    }
+
+    @Test
+    public void testDrainToOrderAndMax() {
+        MessageAggregator agg = new MessageAggregator();
+        for (int i = 0; i < 5; i++)
+            receive(agg, i % 2 == 0 ? "A" : "B", i);
+
+        List<MessageAggregator.Message> first = new ArrayList<MessageAggregator.Message>();
+        assertEquals(3, agg.drainTo(first, 3));
+        assertEquals("A0", describe(first.get(0)));
+        assertEquals("B1", describe(first.get(1)));
+        assertEquals("A2", describe(first.get(2)));
+
+        assertEquals(list("B3", "A4"), drain(agg));
+        assertEquals(0, agg.drainTo(new ArrayList<MessageAggregator.Message>(), 10, 10));
+    }
+
+    @Test
+    public void testConflateAndGetLatest() {
+        MessageAggregator agg = new MessageAggregator(true);
+        receive(agg, "A", 1);
+        receive(agg, "B", 1);
+        receive(agg, "A", 2);
+
+        // one message per channel, in the order the channels were first updated.
+        assertEquals(2, agg.numMessagesAvailable());
+        assertEquals(list("A2", "B1"), drain(agg));
+
+        // getLatest returns the last message again until a newer one arrives.
+        MessageAggregator.Message a2 = agg.getLatest("A");
+        assertEquals("A2", describe(a2));
+        assertSame(a2, agg.getLatest("A"));
+        assertNull(agg.getLatest("C"));
+
+        receive(agg, "A", 3);
+        assertEquals(1, agg.numMessagesAvailable());
+        assertEquals("A3", describe(agg.getLatest("A")));
+
+        // taken by getLatest, so no longer pending.
+        assertEquals(0, agg.numMessagesAvailable());
+        assertNull(agg.getNextMessage(0));
+        assertEquals("A2", describe(a2));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testGetLatestRequiresConflating() {
+        new MessageAggregator().getLatest("A");
+    }
+
+    /** Pooled buffers are only reused once recycled, so retrieved
+     * messages are never overwritten by later ones.
+     */
+    @Test
+    public void testBufferReuseDoesNotAlias() {
+        MessageAggregator agg = new MessageAggregator();
+        receive(agg, "A", 1);
+        MessageAggregator.Message m1 = agg.getNextMessage(0);
+
+        receive(agg, "A", 2);
+        MessageAggregator.Message m2 = agg.getNextMessage(0);
+        assertNotSame(m1.data, m2.data);
+        assertEquals("A1", describe(m1));
+        assertEquals("A2", describe(m2));
+
+        // evicted buffers are reused, without touching retrieved messages.
+        agg.setMaxMessages(1);
+        receive(agg, "A", 3);
+        receive(agg, "A", 4);
+        MessageAggregator.Message m4 = agg.getNextMessage(0);
+        assertNotSame(m1.data, m4.data);
+        assertNotSame(m2.data, m4.data);
+        assertEquals("A1", describe(m1));
+        assertEquals("A2", describe(m2));
+        assertEquals("A4", describe(m4));
+
+        agg.recycle(m1);
+        receive(agg, "A", 5);
+        MessageAggregator.Message m5 = agg.getNextMessage(0);
+        assertEquals("A2", describe(m2));
+        assertEquals("A4", describe(m4));
+        assertEquals("A5", describe(m5));
+
+        // in conflating mode, the message getLatest may return again is
+        // never recycled.
+        MessageAggregator conflating = new MessageAggregator(true);
+        receive(conflating, "A", 1);
+        MessageAggregator.Message c1 = conflating.getLatest("A");
+        byte copy[] = c1.data.clone();
+        conflating.recycle(c1);
+        receive(conflating, "A", 2);
+        assertArrayEquals(copy, c1.data);
+        assertEquals("A2", describe(conflating.getLatest("A")));
+        assertEquals("A1", describe(c1));
+    }
+}
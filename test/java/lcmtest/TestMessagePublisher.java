@@ -0,0 +1,266 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import lcm.lcm.DeliveryPolicy;
+import lcm.lcm.LCM;
+import lcm.lcm.LCMDataInputStream;
+import lcm.lcm.MessagePublisher;
+
+/**
+ * Checks the demand and overflow handling of MessagePublisher. Messages
+ * are handed to the publisher directly, as LCM would.
+ */
+public class TestMessagePublisher {
+    LCM lcm;
+
+    @Before
+    public void setUp() throws Exception {
+        lcm = new LCM("memq://");
+    }
+
+    @After
+    public void tearDown() {
+        lcm.close();
+    }
+
+    /** Records what it is signalled, asking for <code>initial</code>
+     * messages when subscribed.
+     */
+    static class Recorder implements MessagePublisher.Subscriber {
+        final long initial;
+        MessagePublisher.Subscription subscription;
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        volatile Throwable error;
+        volatile int completions = 0;
+
+        Recorder(long initial) {
+            this.initial = initial;
+        }
+
+        public void onSubscribe(MessagePublisher.Subscription subscription) {
+            this.subscription = subscription;
+            if (initial > 0)
+                subscription.request(initial);
+        }
+
+        public void onNext(MessagePublisher.Message message) {
+            received.add(message.channel + (message.data[0] & 0xff));
+        }
+
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        public void onComplete() {
+            completions++;
+        }
+    }
+
+    static void receive(MessagePublisher publisher, String channel, int value) {
+        publisher.messageReceived(null, channel, new LCMDataInputStream(new byte[] { (byte) value }));
+    }
+
+    static List<String> list(String... items) {
+        List<String> result = new ArrayList<String>();
+        for (String item : items)
+            result.add(item);
+        return result;
+    }
+
+    @Test
+    public void testOnNextBoundedByDemand() {
+        MessagePublisher publisher = lcm.createPublisher("PUB", 100, DeliveryPolicy.Overflow.DROP_OLDEST);
+        Recorder recorder = new Recorder(3);
+        publisher.subscribe(recorder);
+
+        for (int i = 0; i < 10; i++)
+            receive(publisher, "A", i);
+        assertEquals(list("A0", "A1", "A2"), recorder.received);
+
+        recorder.subscription.request(2);
+        assertEquals(list("A0", "A1", "A2", "A3", "A4"), recorder.received);
+
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertEquals(10, recorder.received.size());
+        receive(publisher, "A", 10);
+        assertEquals(11, recorder.received.size());
+        assertEquals(0, publisher.getDropCount());
+    }
+
+    /** Fills a two-message buffer with five messages, then asks for all
+     * of them.
+     */
+    static Recorder overflow(LCM lcm, DeliveryPolicy.Overflow overflow, String channels,
+                             long expectedDrops) {
+        MessagePublisher publisher = lcm.createPublisher("PUB", 2, overflow);
+        Recorder recorder = new Recorder(0);
+        publisher.subscribe(recorder);
+
+        for (int i = 0; i < channels.length(); i++)
+            receive(publisher, channels.substring(i, i + 1), i);
+
+        assertEquals(expectedDrops, publisher.getDropCount());
+        recorder.subscription.request(10);
+        publisher.close();
+        return recorder;
+    }
+
+    @Test
+    public void testDropOldest() {
+        Recorder r = overflow(lcm, DeliveryPolicy.Overflow.DROP_OLDEST, "AAAAA", 3);
+        assertEquals(list("A3", "A4"), r.received);
+    }
+
+    @Test
+    public void testDropNewest() {
+        Recorder r = overflow(lcm, DeliveryPolicy.Overflow.DROP_NEWEST, "AAAAA", 3);
+        assertEquals(list("A0", "A1"), r.received);
+    }
+
+    @Test
+    public void testConflate() {
+        // A2 and A3 replace A0 in place, B4 replaces B1.
+        Recorder r = overflow(lcm, DeliveryPolicy.Overflow.CONFLATE, "ABAAB", 3);
+        assertEquals(list("A3", "B4"), r.received);
+
+        // with the buffer full of other channels, the oldest is dropped.
+        r = overflow(lcm, DeliveryPolicy.Overflow.CONFLATE, "ABCDE", 3);
+        assertEquals(list("D3", "E4"), r.received);
+    }
+
+    @Test
+    public void testBlockWaitsForDemand() throws Exception {
+        final MessagePublisher publisher = lcm.createPublisher("PUB", 1, DeliveryPolicy.Overflow.BLOCK);
+        Recorder recorder = new Recorder(0);
+        publisher.subscribe(recorder);
+
+        Thread provider = new Thread() {
+            public void run() {
+                for (int i = 0; i < 3; i++)
+                    receive(publisher, "A", i);
+            }
+        };
+        provider.start();
+        provider.join(200);
+        assertTrue("provider should wait for room", provider.isAlive());
+
+        recorder.subscription.request(3);
+        provider.join(5000);
+        assertFalse(provider.isAlive());
+        assertEquals(list("A0", "A1", "A2"), recorder.received);
+        assertEquals(0, publisher.getDropCount());
+    }
+
+    @Test
+    public void testNonPositiveRequestSignalsError() {
+        MessagePublisher publisher = lcm.createPublisher("PUB", 10, DeliveryPolicy.Overflow.DROP_OLDEST);
+        Recorder recorder = new Recorder(0);
+        publisher.subscribe(recorder);
+
+        receive(publisher, "A", 0);
+        recorder.subscription.request(0);
+        assertTrue(String.valueOf(recorder.error), recorder.error instanceof IllegalArgumentException);
+        assertEquals(0, recorder.completions);
+
+        recorder.subscription.request(5);
+        receive(publisher, "A", 1);
+        assertTrue(recorder.received.isEmpty());
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void testCloseCompletes() {
+        MessagePublisher publisher = lcm.createPublisher("PUB", 10, DeliveryPolicy.Overflow.DROP_OLDEST);
+        Recorder recorder = new Recorder(0);
+        publisher.subscribe(recorder);
+        receive(publisher, "A", 0);
+
+        publisher.close();
+        assertEquals(1, recorder.completions);
+        assertNull(recorder.error);
+
+        // buffered messages were discarded, and nothing more arrives.
+        recorder.subscription.request(5);
+        receive(publisher, "A", 1);
+        assertTrue(recorder.received.isEmpty());
+        assertEquals(1, recorder.completions);
+
+        // subscribing after close completes at once.
+        Recorder late = new Recorder(1);
+        publisher.subscribe(late);
+        assertEquals(1, late.completions);
+    }
+
+    @Test
+    public void testCancelFromOnNext() {
+        MessagePublisher publisher = lcm.createPublisher("PUB", 10, DeliveryPolicy.Overflow.DROP_OLDEST);
+        Recorder recorder = new Recorder(Long.MAX_VALUE) {
+            public void onNext(MessagePublisher.Message message) {
+                super.onNext(message);
+                if (received.size() == 2)
+                    subscription.cancel();
+            }
+        };
+        publisher.subscribe(recorder);
+
+        for (int i = 0; i < 5; i++)
+            receive(publisher, "A", i);
+        assertEquals(list("A0", "A1"), recorder.received);
+        assertEquals(0, publisher.getSubscriberCount());
+        assertEquals(0, recorder.completions);
+    }
+
+    /** Two threads requesting at once never signal onNext concurrently,
+     * and every buffered message is delivered once, in order.
+     */
+    @Test
+    public void testNoConcurrentOnNext() throws Exception {
+        final int messages = 1000;
+        final MessagePublisher publisher = lcm.createPublisher("PUB", messages, DeliveryPolicy.Overflow.DROP_OLDEST);
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final Recorder recorder = new Recorder(0) {
+            public void onNext(MessagePublisher.Message message) {
+                if (inside.incrementAndGet() != 1)
+                    overlaps.incrementAndGet();
+                super.onNext(message);
+                Thread.yield();
+                inside.decrementAndGet();
+            }
+        };
+        publisher.subscribe(recorder);
+
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < messages; i++) {
+            receive(publisher, "A", i);
+            expected.add("A" + (i & 0xff));
+        }
+
+        Thread requesters[] = new Thread[2];
+        for (int t = 0; t < requesters.length; t++) {
+            requesters[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < messages / 2; i++)
+                        recorder.subscription.request(1);
+                }
+            };
+            requesters[t].start();
+        }
+        for (Thread t : requesters)
+            t.join(10000);
+
+        assertEquals(0, overlaps.get());
+        assertEquals(expected, recorder.received);
+    }
+}
@@ -0,0 +1,127 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import lcm.lcm.LCM;
+import lcm.lcm.LCMDataInputStream;
+import lcm.lcm.LCMSubscriber;
+import lcm.lcm.MulticastStats;
+import lcm.lcm.ReliableMulticastStats;
+
+/**
+ * Checks that udpr:// recovers dropped datagrams and delivers each channel
+ * in order, with drops injected on localhost multicast, and that a udpm://
+ * listener on the same group quietly ignores the NAKs and heartbeats.
+ */
+public class TestReliableMulticastProvider {
+    static final String NETWORK = "239.255.76.68:7670";
+    static final String CHANNELS[] = { "RELIABLE_A", "RELIABLE_B" };
+    static final int MESSAGES = 400;
+    static final int LARGE_SIZE = 100000; // sent as two fragments
+
+    /** Checks that each channel's messages arrive in order and intact. */
+    static class Checker implements LCMSubscriber {
+        final CountDownLatch done = new CountDownLatch(MESSAGES);
+        final int next[] = new int[CHANNELS.length];
+        volatile String error;
+
+        public synchronized void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+            try {
+                int c = channel.equals(CHANNELS[0]) ? 0 : 1;
+                int index = ins.readInt();
+                if (index != next[c])
+                    error = channel + ": expected message " + next[c] + ", got " + index;
+                next[c] = index + 1;
+
+                byte data[] = new byte[ins.available()];
+                ins.readFully(data);
+                if (data.length != payloadSize(index))
+                    error = channel + ": message " + index + " has " + data.length + " bytes";
+                for (int i = 0; i < data.length; i++) {
+                    if (data[i] != (byte) (index + i)) {
+                        error = channel + ": message " + index + " is corrupt";
+                        break;
+                    }
+                }
+            } catch (IOException ex) {
+                error = ex.toString();
+            }
+            done.countDown();
+        }
+    }
+
+    static int payloadSize(int index) {
+        return (index % 10 == 0) ? LARGE_SIZE : 100;
+    }
+
+    @Test
+    public void testRecoversDrops() throws Exception {
+        LCM rx = new LCM("udpr://" + NETWORK + "?ttl=0&drop_rate=0.2&rcvbuf=2000000");
+        LCM tx = new LCM("udpr://" + NETWORK + "?ttl=0");
+        LCM listener = new LCM("udpm://" + NETWORK + "?ttl=0&rcvbuf=2000000");
+        try {
+            Checker checker = new Checker();
+            rx.subscribe("RELIABLE_.*", checker);
+            listener.subscribe("RELIABLE_.*", new LCMSubscriber() {
+                public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                }
+            });
+
+            // messages sent before the receiver first hears from a sender
+            // are not recovered, so make sure it has.
+            final CountDownLatch heard = new CountDownLatch(1);
+            rx.subscribe("WARMUP", new LCMSubscriber() {
+                public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                    heard.countDown();
+                }
+            });
+            for (int i = 0; i < 100 && !heard.await(10, TimeUnit.MILLISECONDS); i++)
+                tx.publish("WARMUP", new byte[1], 0, 1);
+            assertTrue(heard.await(1, TimeUnit.SECONDS));
+
+            int sent[] = new int[CHANNELS.length];
+            for (int i = 0; i < MESSAGES; i++) {
+                int c = i % CHANNELS.length;
+                int index = sent[c]++;
+
+                byte msg[] = new byte[4 + payloadSize(index)];
+                msg[0] = (byte) (index >>> 24);
+                msg[1] = (byte) (index >>> 16);
+                msg[2] = (byte) (index >>> 8);
+                msg[3] = (byte) index;
+                for (int j = 4; j < msg.length; j++)
+                    msg[j] = (byte) (index + j - 4);
+
+                tx.publish(CHANNELS[c], msg, 0, msg.length);
+                if (i % 10 == 0)
+                    Thread.sleep(1);
+            }
+
+            assertTrue("received " + (MESSAGES - checker.done.getCount()) + " of " + MESSAGES,
+                       checker.done.await(10, TimeUnit.SECONDS));
+            assertEquals(null, checker.error);
+
+            ReliableMulticastStats rxStats = (ReliableMulticastStats) rx.getMulticastStats().get(0);
+            ReliableMulticastStats txStats = (ReliableMulticastStats) tx.getMulticastStats().get(0);
+            assertTrue(rxStats.toString(), rxStats.getInjectedDropCount() > 0);
+            assertTrue(rxStats.toString(), rxStats.getNakCount() > 0);
+            assertTrue(rxStats.toString(), rxStats.getRecoveredCount() > 0);
+            assertEquals(rxStats.toString(), 0, rxStats.getUnrecoverableCount());
+            assertTrue(txStats.toString(), txStats.getNaksReceivedCount() > 0);
+            assertTrue(txStats.toString(), txStats.getRetransmitCount() > 0);
+
+            MulticastStats listenerStats = listener.getMulticastStats().get(0);
+            assertTrue(listenerStats.toString(), listenerStats.getMessageCount() > 0);
+            assertEquals(listenerStats.toString(), 0, listenerStats.getInvalidCount());
+        } finally {
+            listener.close();
+            tx.close();
+            rx.close();
+        }
+    }
+}
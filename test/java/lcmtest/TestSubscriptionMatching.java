@@ -0,0 +1,194 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import lcm.lcm.LCM;
+import lcm.lcm.LCMDataInputStream;
+import lcm.lcm.LCMSubscriber;
+
+/**
+ * Checks which subscribers receive a message, and the cache of each
+ * channel's subscribers. Messages are handed to LCM.receiveMessage
+ * directly, so they are delivered on the test thread.
+ */
+public class TestSubscriptionMatching {
+    static final String REGEXES[] = {
+        "POSE", "CAMERA_.*", ".*", "A\\.B", "A\\.B.*", "A\\.*", "A.B", "[AB]C",
+        "X\\d", "", "POSE", "CAMERA_L.*", "\\.*", "C\\*.*",
+    };
+
+    static final String CHANNELS[] = {
+        "POSE", "POSEX", "POS", "CAMERA_", "CAMERA_LEFT", "CAMERA_\nX",
+        "CAMERA_LEFT\u2028", "CAMERA_LEFT\r", "\n", "", "A.B", "AxB", "A.BC",
+        "A...", "A", "AC", "BC", "X1", "Xa", "POSE\r", "...", "C*", "C*D", "CD",
+    };
+
+    LCM lcm;
+    final List<String> received = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        lcm = new LCM("memq://");
+    }
+
+    @After
+    public void tearDown() {
+        lcm.close();
+    }
+
+    /** Records its name in <code>received</code>. */
+    class Recorder implements LCMSubscriber {
+        final String name;
+
+        Recorder(String name) {
+            this.name = name;
+        }
+
+        public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+            received.add(name);
+        }
+    }
+
+    List<String> deliver(String channel) {
+        received.clear();
+        lcm.receiveMessage(channel, new byte[0], 0, 0);
+        return new ArrayList<String>(received);
+    }
+
+    static String show(String channel) {
+        return channel.replace("\n", "\\n").replace("\r", "\\r").replace("\u2028", "\\u2028");
+    }
+
+    /** Every subscription kind matches exactly as java.util.regex does,
+     * and matching subscribers are called in the order they subscribed.
+     */
+    @Test
+    public void testMatchesLikeRegex() {
+        for (int i = 0; i < REGEXES.length; i++)
+            lcm.subscribe(REGEXES[i], new Recorder(i + ":" + REGEXES[i]));
+
+        for (String channel : CHANNELS) {
+            List<String> expected = new ArrayList<String>();
+            for (int i = 0; i < REGEXES.length; i++) {
+                if (Pattern.matches(REGEXES[i], channel))
+                    expected.add(i + ":" + REGEXES[i]);
+            }
+            assertEquals(show(channel), expected, deliver(channel));
+            // and again, from the cache.
+            assertEquals(show(channel), expected, deliver(channel));
+        }
+    }
+
+    @Test
+    public void testUnsubscribe() {
+        Recorder literal = new Recorder("literal");
+        Recorder prefix = new Recorder("prefix");
+        Recorder regex = new Recorder("regex");
+        lcm.subscribe("CAMERA_LEFT", literal);
+        lcm.subscribe("CAMERA_.*", prefix);
+        lcm.subscribe("CAMERA_(LEFT|RIGHT)", regex);
+        lcm.subscribe("CAMERA_.*", literal);
+
+        List<String> all = new ArrayList<String>();
+        all.add("literal");
+        all.add("prefix");
+        all.add("regex");
+        all.add("literal");
+        assertEquals(all, deliver("CAMERA_LEFT"));
+
+        lcm.unsubscribe("CAMERA_.*", prefix);
+        all.remove("prefix");
+        assertEquals(all, deliver("CAMERA_LEFT"));
+
+        lcm.unsubscribe(null, literal);
+        List<String> rest = new ArrayList<String>();
+        rest.add("regex");
+        assertEquals(rest, deliver("CAMERA_LEFT"));
+
+        lcm.unsubscribe("CAMERA_(LEFT|RIGHT)", null);
+        assertEquals(new ArrayList<String>(), deliver("CAMERA_LEFT"));
+        assertEquals(0, lcm.getNumSubscriptions());
+    }
+
+    static List<String> list(String... items) {
+        List<String> result = new ArrayList<String>();
+        for (String item : items)
+            result.add(item);
+        return result;
+    }
+
+    /** Subscribing and unsubscribing between messages takes effect on
+     * channels that are already cached.
+     */
+    @Test
+    public void testCacheInvalidation() {
+        Recorder a = new Recorder("a");
+        Recorder b = new Recorder("b");
+        lcm.subscribe("X", a);
+
+        assertEquals(list("a"), deliver("X"));
+        assertEquals(list("a"), deliver("X"));
+        assertEquals(1, lcm.getChannelCacheMisses());
+        assertEquals(1, lcm.getChannelCacheHits());
+
+        lcm.subscribe(".*", b);
+        assertEquals(list("a", "b"), deliver("X"));
+        assertEquals(list("b"), deliver("Y"));
+        assertEquals(list("a", "b"), deliver("X"));
+        assertEquals(3, lcm.getChannelCacheMisses());
+        assertEquals(2, lcm.getChannelCacheHits());
+
+        lcm.unsubscribe("X", a);
+        assertEquals(list("b"), deliver("X"));
+        lcm.unsubscribe(".*", b);
+        assertEquals(list(), deliver("X"));
+        assertEquals(list(), deliver("Y"));
+
+        lcm.subscribe("Y", a);
+        assertEquals(list(), deliver("X"));
+        assertEquals(list("a"), deliver("Y"));
+    }
+
+    /** The cache stays within its capacity, evicting the least recently
+     * used channels, and evicted channels are resolved again.
+     */
+    @Test
+    public void testCacheEviction() {
+        lcm.subscribe("CH_.*", new Recorder("all"));
+        lcm.setChannelCacheCapacity(8);
+        assertEquals(8, lcm.getChannelCacheCapacity());
+
+        for (int i = 0; i < 8; i++)
+            deliver("CH_" + i);
+        assertEquals(8, lcm.getChannelCacheSize());
+        assertEquals(0, lcm.getChannelCacheEvictions());
+
+        // CH_0 was used after the others were inserted, so survives.
+        deliver("CH_0");
+        deliver("CH_8");
+        assertTrue(lcm.getChannelCacheSize() <= 8);
+        assertTrue(lcm.getChannelCacheEvictions() > 0);
+
+        long hits = lcm.getChannelCacheHits();
+        long misses = lcm.getChannelCacheMisses();
+        assertEquals(list("all"), deliver("CH_0"));
+        assertEquals(hits + 1, lcm.getChannelCacheHits());
+        assertEquals(list("all"), deliver("CH_1"));
+        assertEquals(misses + 1, lcm.getChannelCacheMisses());
+
+        for (int i = 0; i < 100; i++)
+            assertEquals(list("all"), deliver("CH_" + i));
+        assertTrue(lcm.getChannelCacheSize() <= 8);
+
+        lcm.setChannelCacheCapacity(2);
+        assertTrue(lcm.getChannelCacheSize() <= 2);
+        assertEquals(list("all"), deliver("CH_5"));
+    }
+}
@@ -0,0 +1,180 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import lcm.lcm.LCM;
+import lcm.lcm.LCMDataInputStream;
+import lcm.lcm.LCMSubscriber;
+import lcm.lcm.TCPProvider;
+import lcm.lcm.TCPService;
+
+/**
+ * Relays a compressed tcpq message through a TCPService hub to a client
+ * that understands compression and to clients that don't.
+ */
+public class TestTCPService {
+    static final int PORT = 7702;
+    static final String URL = "tcpq://127.0.0.1:" + PORT;
+
+    Thread hub;
+
+    @Before
+    public void setUp() throws Exception {
+        hub = new Thread() {
+            public void run() {
+                try {
+                    new TCPService(PORT);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        };
+        hub.setDaemon(true);
+        hub.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        hub.interrupt();
+        hub.join(5000);
+    }
+
+    /** Speaks the hub protocol directly, announcing <code>version</code>. */
+    static class RawClient {
+        Socket sock;
+        DataInputStream ins;
+        DataOutputStream outs;
+
+        RawClient(int version) throws Exception {
+            for (int tries = 0; ; tries++) {
+                try {
+                    sock = new Socket("127.0.0.1", PORT);
+                    break;
+                } catch (IOException ex) {
+                    if (tries == 100)
+                        throw ex;
+                    Thread.sleep(50);
+                }
+            }
+            sock.setSoTimeout(5000);
+            ins = new DataInputStream(sock.getInputStream());
+            outs = new DataOutputStream(sock.getOutputStream());
+            outs.writeInt(TCPProvider.MAGIC_CLIENT);
+            outs.writeInt(version);
+            outs.flush();
+            assertEquals(TCPProvider.MAGIC_SERVER, ins.readInt());
+            assertEquals(TCPProvider.VERSION, ins.readInt());
+        }
+
+        void write(int type, String channel, byte data[]) throws IOException {
+            outs.writeInt(type);
+            outs.writeInt(channel.length());
+            outs.writeBytes(channel);
+            if (data != null) {
+                outs.writeInt(data.length);
+                outs.write(data);
+            }
+            outs.flush();
+        }
+
+        /** Subscribes to <code>channel</code> and waits until the hub has
+         * taken the subscription, by relaying a message of our own.
+         */
+        void subscribe(String channel, String sync) throws IOException {
+            write(TCPProvider.MESSAGE_TYPE_SUBSCRIBE, channel, null);
+            write(TCPProvider.MESSAGE_TYPE_SUBSCRIBE, sync, null);
+            write(TCPProvider.MESSAGE_TYPE_PUBLISH, sync, new byte[] { 1 });
+            assertEquals(sync, read().channel);
+        }
+
+        Frame read() throws IOException {
+            Frame frame = new Frame();
+            frame.type = ins.readInt();
+            byte channel[] = new byte[ins.readInt()];
+            ins.readFully(channel);
+            frame.channel = new String(channel, "US-ASCII");
+            frame.data = new byte[ins.readInt()];
+            ins.readFully(frame.data);
+            return frame;
+        }
+
+        void close() throws IOException {
+            sock.close();
+        }
+    }
+
+    static class Frame {
+        int type;
+        String channel;
+        byte data[];
+    }
+
+    static class Queue implements LCMSubscriber {
+        final BlockingQueue<byte[]> received = new ArrayBlockingQueue<byte[]>(100);
+
+        public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+            byte data[] = new byte[ins.available()];
+            System.arraycopy(ins.getBuffer(), ins.getBufferOffset(), data, 0, data.length);
+            received.offer(data);
+        }
+    }
+
+    @Test
+    public void testCompressedRelay() throws Exception {
+        LCM sender = new LCM(URL + "?compress=true&compress_threshold=1000");
+        LCM receiver = new LCM(URL);
+        RawClient oldClient = new RawClient(0x0100);
+        RawClient newClient = new RawClient(TCPProvider.VERSION_COMPRESSED);
+        try {
+            // both LCM clients are connected and subscribed once a
+            // message gets through.
+            Queue warmup = new Queue();
+            receiver.subscribe("WARMUP", warmup);
+            for (int i = 0; i < 100 && warmup.received.isEmpty(); i++) {
+                sender.publish("WARMUP", new byte[] { 1 }, 0, 1);
+                Thread.sleep(50);
+            }
+            assertTrue("no connection to the hub", !warmup.received.isEmpty());
+
+            Queue queue = new Queue();
+            receiver.subscribe("BIG", queue);
+            oldClient.subscribe("BIG", "SYNC_OLD");
+            newClient.subscribe("BIG", "SYNC_NEW");
+
+            byte payload[] = new byte[20000];
+            for (int i = 0; i < payload.length; i++)
+                payload[i] = (byte) (i % 100);
+            sender.publish("BIG", payload, 0, payload.length);
+
+            byte received[] = queue.received.poll(5, TimeUnit.SECONDS);
+            assertArrayEquals(payload, received);
+
+            Frame frame = oldClient.read();
+            assertEquals("BIG", frame.channel);
+            assertEquals(TCPProvider.MESSAGE_TYPE_PUBLISH, frame.type);
+            assertArrayEquals(payload, frame.data);
+
+            frame = newClient.read();
+            assertEquals("BIG", frame.channel);
+            assertEquals(TCPProvider.MESSAGE_TYPE_PUBLISH_COMPRESSED, frame.type);
+            assertTrue(frame.data.length < payload.length);
+        } finally {
+            oldClient.close();
+            newClient.close();
+            sender.close();
+            receiver.close();
+        }
+    }
+}
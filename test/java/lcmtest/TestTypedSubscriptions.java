@@ -0,0 +1,134 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import lcm.lcm.LCM;
+import lcm.lcm.LCMDataInputStream;
+import lcm.lcm.LCMEncodable;
+import lcm.lcm.LCMSubscriber;
+import lcm.lcm.LCMTypedSubscriber;
+
+/**
+ * Checks that typed subscriptions decode each message once per type, and
+ * ignore messages of other types.
+ */
+public class TestTypedSubscriptions {
+    /** A minimal lcm-gen style type that counts how often it is decoded. */
+    public static class Counted implements LCMEncodable {
+        public static final long LCM_FINGERPRINT = 0x1234567890abcdefL;
+        static final AtomicInteger decodes = new AtomicInteger();
+
+        public int value;
+
+        public Counted() {
+        }
+
+        public Counted(DataInput ins) throws IOException {
+            if (ins.readLong() != LCM_FINGERPRINT)
+                throw new IOException("bad fingerprint");
+            _decodeRecursive(ins);
+            decodes.incrementAndGet();
+        }
+
+        public void encode(DataOutput outs) throws IOException {
+            outs.writeLong(LCM_FINGERPRINT);
+            _encodeRecursive(outs);
+        }
+
+        public void _encodeRecursive(DataOutput outs) throws IOException {
+            outs.writeInt(value);
+        }
+
+        public void _decodeRecursive(DataInput ins) throws IOException {
+            value = ins.readInt();
+        }
+    }
+
+    /** Another type, with a different fingerprint. */
+    public static class Other implements LCMEncodable {
+        public static final long LCM_FINGERPRINT = 0x0fedcba987654321L;
+        static final AtomicInteger decodes = new AtomicInteger();
+
+        public Other() {
+        }
+
+        public Other(DataInput ins) throws IOException {
+            if (ins.readLong() != LCM_FINGERPRINT)
+                throw new IOException("bad fingerprint");
+            decodes.incrementAndGet();
+        }
+
+        public void encode(DataOutput outs) throws IOException {
+            outs.writeLong(LCM_FINGERPRINT);
+        }
+
+        public void _encodeRecursive(DataOutput outs) throws IOException {
+        }
+
+        public void _decodeRecursive(DataInput ins) throws IOException {
+        }
+    }
+
+    static class Recorder<T extends LCMEncodable> implements LCMTypedSubscriber<T> {
+        final List<T> received = Collections.synchronizedList(new ArrayList<T>());
+
+        public void messageReceived(LCM lcm, String channel, T msg) {
+            received.add(msg);
+        }
+    }
+
+    /** Subscribers of one type interleaved with another type share a
+     * single decode.
+     */
+    @Test
+    public void testDecodeOncePerType() throws Exception {
+        Counted.decodes.set(0);
+        Other.decodes.set(0);
+
+        Recorder<Counted> first = new Recorder<Counted>();
+        Recorder<Other> other = new Recorder<Other>();
+        Recorder<Counted> second = new Recorder<Counted>();
+        final CountDownLatch done = new CountDownLatch(2);
+
+        LCM lcm = new LCM("memq://");
+        try {
+            lcm.subscribe("TYPED", Counted.class, first);
+            lcm.subscribe("TYPED", Other.class, other);
+            lcm.subscribe("TYPED", Counted.class, second);
+            lcm.subscribe("TYPED", new LCMSubscriber() {
+                public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                    done.countDown();
+                }
+            });
+
+            Counted msg = new Counted();
+            msg.value = 42;
+            lcm.publish("TYPED", msg);
+            lcm.publish("TYPED", new Other());
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(1, Counted.decodes.get());
+            assertEquals(1, Other.decodes.get());
+
+            assertEquals(1, first.received.size());
+            assertEquals(1, second.received.size());
+            assertEquals(1, other.received.size());
+            assertEquals(42, first.received.get(0).value);
+            assertSame(first.received.get(0), second.received.get(0));
+        } finally {
+            lcm.close();
+        }
+    }
+}
@@ -1,6 +1,27 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Test;
 
+import lcm.lcm.DeliveryPolicy;
 import lcm.lcm.LCM;
+import lcm.lcm.LCMDataInputStream;
+import lcm.lcm.LCMSubscriber;
+import lcm.lcm.LCMTimestampedSubscriber;
+import lcm.lcm.MessageAggregator;
+import lcm.lcm.MulticastStats;
 
 public class TestUDPMulticastProvider {
     @Test
@@ -9,4 +30,201 @@ public class TestUDPMulticastProvider {
         lcm.subscribe("", null);
         lcm.close();
     }
+
+    /** A receiver that does not enable compression still decodes
+     * compressed short and fragmented messages.
+     */
+    @Test
+    public void testCompressedRoundTrip() throws Exception {
+        final int sizes[] = { 30000, 300000 };
+        final Map<String, byte[]> received = new ConcurrentHashMap<String, byte[]>();
+        final CountDownLatch done = new CountDownLatch(sizes.length);
+
+        LCM rx = new LCM("udpm://239.255.76.67:7669?ttl=0");
+        LCM tx = new LCM("udpm://239.255.76.67:7669?ttl=0&compress=true&compress_threshold=1000");
+        try {
+            rx.subscribe("COMPRESSED_.*", new LCMSubscriber() {
+                public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                    byte data[] = new byte[ins.available()];
+                    try {
+                        ins.readFully(data);
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                    received.put(channel, data);
+                    done.countDown();
+                }
+            });
+
+            byte expected[][] = new byte[sizes.length][];
+            for (int i = 0; i < sizes.length; i++) {
+                expected[i] = new byte[sizes[i]];
+                for (int j = 0; j < sizes[i]; j++)
+                    expected[i][j] = (byte) (j / 100 + j % 7);
+                tx.publish("COMPRESSED_" + i, expected[i], 0, sizes[i]);
+            }
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < sizes.length; i++)
+                assertArrayEquals(expected[i], received.get("COMPRESSED_" + i));
+        } finally {
+            tx.close();
+            rx.close();
+        }
+    }
+
+    /** Messages are stamped when they arrive, so time spent queued
+     * behind a slow subscriber is not part of the timestamp.
+     */
+    @Test
+    public void testReceiveTimestamps() throws Exception {
+        final int messages = 3;
+        final long sleep_ms = 50;
+        final long received[] = new long[messages];
+        final long delivered[] = new long[messages];
+        final CountDownLatch done = new CountDownLatch(messages);
+        final AtomicInteger overridden = new AtomicInteger();
+
+        // subclasses that override the three-argument method still see
+        // every message, stamped with its receive time.
+        MessageAggregator aggregator = new MessageAggregator() {
+            public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                overridden.incrementAndGet();
+                super.messageReceived(lcm, channel, ins);
+            }
+        };
+
+        LCM rx = new LCM("udpm://239.255.76.67:7671?ttl=0");
+        LCM tx = new LCM("udpm://239.255.76.67:7671?ttl=0");
+        try {
+            rx.subscribe("TIMESTAMPED", new LCMTimestampedSubscriber() {
+                int count;
+
+                public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                    throw new AssertionError("timestamped subscriber called without a timestamp");
+                }
+
+                public void messageReceived(LCM lcm, String channel, long utime, LCMDataInputStream ins) {
+                    received[count] = utime;
+                    delivered[count] = LCM.utime();
+                    count++;
+                    try {
+                        Thread.sleep(sleep_ms);
+                    } catch (InterruptedException ex) {
+                    }
+                    done.countDown();
+                }
+            }, DeliveryPolicy.lane(16, DeliveryPolicy.Overflow.BLOCK));
+            rx.subscribe("TIMESTAMPED", aggregator);
+
+            long start = LCM.utime();
+            for (int i = 0; i < messages; i++)
+                tx.publish("TIMESTAMPED", new byte[] { (byte) i }, 0, 1);
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < messages; i++) {
+                assertTrue(received[i] >= start);
+                assertTrue(received[i] <= delivered[i]);
+            }
+            // the last message arrived at once, but waited for the
+            // subscriber to finish with the others.
+            assertTrue(delivered[messages - 1] - received[messages - 1] >= (messages - 1) * sleep_ms * 1000 / 2);
+
+            assertEquals(messages, overridden.get());
+            for (int i = 0; i < messages; i++)
+                assertEquals(received[i], aggregator.getNextMessage(0).utime);
+        } finally {
+            tx.close();
+            rx.close();
+        }
+    }
+
+    /** Sends the first or second of two fragments of a message whose
+     * channel name has no terminating zero.
+     */
+    static void sendUnterminatedFragment(MulticastSocket socket, String network, int fragment)
+        throws IOException {
+        String addrport[] = network.split(":");
+        ByteBuffer buf = ByteBuffer.allocate(20 + 1000);
+        buf.putInt(0x4c433033); // "LC03"
+        buf.putInt(12345);
+        buf.putInt(2000);
+        buf.putInt(fragment * 1000);
+        buf.putShort((short) fragment);
+        buf.putShort((short) 2);
+        while (buf.hasRemaining())
+            buf.put((byte) 'X');
+        socket.send(new DatagramPacket(buf.array(), buf.capacity(),
+                                       InetAddress.getByName(addrport[0]), Integer.parseInt(addrport[1])));
+    }
+
+    /** A first fragment without a channel name is counted as invalid,
+     * and neither it nor the rest of its message is delivered.
+     */
+    @Test
+    public void testUnterminatedChannelName() throws Exception {
+        final String network = "239.255.76.67:7672";
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger count = new AtomicInteger();
+
+        LCM rx = new LCM("udpm://" + network + "?ttl=0");
+        LCM tx = new LCM("udpm://" + network + "?ttl=0");
+        MulticastSocket socket = new MulticastSocket();
+        try {
+            rx.subscribe(".*", new LCMSubscriber() {
+                public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                    count.incrementAndGet();
+                    if (channel.equals("AFTER"))
+                        done.countDown();
+                }
+            });
+
+            socket.setTimeToLive(0);
+            sendUnterminatedFragment(socket, network, 0);
+            sendUnterminatedFragment(socket, network, 1);
+            tx.publish("AFTER", new byte[1], 0, 1);
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(1, count.get());
+            MulticastStats stats = rx.getMulticastStats().get(0);
+            assertEquals(stats.toString(), 1, stats.getInvalidCount());
+        } finally {
+            socket.close();
+            tx.close();
+            rx.close();
+        }
+    }
+
+    /** A message larger than frag_max_bytes is skipped, while smaller
+     * fragmented messages are still received.
+     */
+    @Test
+    public void testMessageLargerThanFragMaxBytes() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Map<String, Integer> received = new ConcurrentHashMap<String, Integer>();
+
+        LCM rx = new LCM("udpm://239.255.76.67:7673?ttl=0&frag_max_bytes=100000&rcvbuf=2000000");
+        LCM tx = new LCM("udpm://239.255.76.67:7673?ttl=0");
+        try {
+            rx.subscribe("SIZED_.*", new LCMSubscriber() {
+                public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+                    received.put(channel, ins.available());
+                    if (channel.equals("SIZED_SMALL"))
+                        done.countDown();
+                }
+            });
+
+            tx.publish("SIZED_LARGE", new byte[300000], 0, 300000);
+            tx.publish("SIZED_SMALL", new byte[90000], 0, 90000);
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(90000), received.get("SIZED_SMALL"));
+            assertEquals(null, received.get("SIZED_LARGE"));
+            MulticastStats stats = rx.getMulticastStats().get(0);
+            assertEquals(stats.toString(), 1, stats.getIncompleteCount());
+        } finally {
+            tx.close();
+            rx.close();
+        }
+    }
 }
@@ -0,0 +1,103 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import lcm.lcm.LCM;
+import lcm.lcm.LCMDataInputStream;
+import lcm.lcm.LCMSubscriber;
+
+/**
+ * Measures the udpm:// dispatch latency, from publish to subscriber, with
+ * the reader threads blocking in the kernel and with them busy-polling.
+ *
+ * Usage: UdpmLatencyBenchmark [messages [rate_hz [spin_ns]]]
+ *
+ * Messages are sent at a steady rate (1 kHz by default, as in a servo
+ * loop), so that with the default spin budget the busy-polling reader
+ * parks between them. Pass a spin_ns of -1 to measure pure spinning.
+ */
+public class UdpmLatencyBenchmark {
+    static final String NETWORK = "239.255.76.67:7668";
+    static final String CHANNEL = "LATENCY_BENCHMARK";
+    static final int WARMUP = 1000;
+
+    /** Records how long each message took to reach the subscriber. */
+    static class Probe implements LCMSubscriber {
+        final long latencies[];
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile int received = 0;
+
+        Probe(int messages) {
+            latencies = new long[messages];
+        }
+
+        public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
+            long now = System.nanoTime();
+            long sent;
+            try {
+                sent = ins.readLong();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+
+            int n = received++;
+            if (n >= WARMUP && n - WARMUP < latencies.length)
+                latencies[n - WARMUP] = now - sent;
+            if (n + 1 == WARMUP + latencies.length)
+                done.countDown();
+        }
+    }
+
+    static void run(String mode, String options, int messages, int rate) throws Exception {
+        LCM rx = new LCM("udpm://" + NETWORK + "?ttl=0" + options);
+        LCM tx = new LCM("udpm://" + NETWORK + "?ttl=0");
+        Probe probe = new Probe(messages);
+        rx.subscribe(CHANNEL, probe);
+
+        byte data[] = new byte[8];
+        long period = 1000000000L / rate;
+        long next = System.nanoTime();
+        for (int i = 0; i < WARMUP + messages; i++) {
+            while (System.nanoTime() < next)
+                LockSupport.parkNanos(next - System.nanoTime());
+            next += period;
+
+            long now = System.nanoTime();
+            for (int b = 0; b < 8; b++)
+                data[b] = (byte) (now >>> (56 - 8 * b));
+            tx.publish(CHANNEL, data, 0, data.length);
+        }
+
+        boolean complete = probe.done.await(5, TimeUnit.SECONDS);
+        tx.close();
+        rx.close();
+
+        long latencies[] = probe.latencies;
+        int n = complete ? latencies.length : Math.max(0, Math.min(probe.received - WARMUP, latencies.length));
+        if (n == 0) {
+            System.out.println(mode + ": no messages received");
+            return;
+        }
+        Arrays.sort(latencies, 0, n);
+        System.out.printf("%-10s %8d msgs  p50 %7.1f us  p90 %7.1f us  p99 %7.1f us  p99.9 %7.1f us  max %8.1f us%n",
+                          mode, n,
+                          percentile(latencies, n, 0.50), percentile(latencies, n, 0.90),
+                          percentile(latencies, n, 0.99), percentile(latencies, n, 0.999),
+                          latencies[n - 1] / 1e3);
+    }
+
+    static double percentile(long sorted[], int n, double p) {
+        return sorted[Math.min(n - 1, (int) (p * n))] / 1e3;
+    }
+
+    public static void main(String args[]) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        String spin = args.length > 2 ? "&spin_ns=" + args[2] : "";
+
+        run("blocking", "", messages, rate);
+        run("busy_poll", "&busy_poll=true" + spin, messages, rate);
+    }
+}